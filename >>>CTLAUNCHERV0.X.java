@@ -8,15 +8,34 @@
 
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
+import java.net.http.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 import java.util.zip.*;
 import java.security.MessageDigest;
+import java.time.Duration;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 
 public class CTLauncherHDR extends JFrame {
     
@@ -24,6 +43,8 @@ public class CTLauncherHDR extends JFrame {
     static final String NAME = "CTLauncher";
     static final String COPYRIGHT = "(C) 1999-2026 Samsoft";
     static final String MANIFEST_URL = "https://piston-meta.mojang.com/mc/game/version_manifest_v2.json";
+    static final int DL_THREADS = Math.max(4, Math.min(16, Runtime.getRuntime().availableProcessors() * 2));
+    static final int NAT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
     
     // CT Style Colors
     static final Color C_BG_DARK = new Color(18, 18, 22);
@@ -43,6 +64,7 @@ public class CTLauncherHDR extends JFrame {
     // UI Components
     JTextField usernameField;
     JComboBox<String> versionCombo;
+    VersionFilter versionFilter;
     JButton launchButton;
     JProgressBar progressBar;
     JLabel statusLabel;
@@ -56,35 +78,490 @@ public class CTLauncherHDR extends JFrame {
     JSlider renderDistSlider;
     
     // Data
-    Map<String, VersionInfo> versions = new LinkedHashMap<>();
+    volatile Map<String, VersionInfo> versions = new LinkedHashMap<>();
+    static final int DETAILS_CACHED = 4;
+    final Map<String, VersionDetails> versionDetails = Collections.synchronizedMap(new LinkedHashMap<>(8, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, VersionDetails> e) { return size() > DETAILS_CACHED; }
+    });
     Map<Integer, String> javaInstalls = new LinkedHashMap<>();
+    FileIndex files;
+    LaunchProfile profile = new LaunchProfile();
+    HttpServer peerServer;
+    volatile List<String> peers = parsePeers(System.getProperty("ctlauncher.peers", ""));
+    final Map<String, Long> peerDown = new ConcurrentHashMap<>();
+    final Map<String, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+    final Set<String> assetsRepaired = ConcurrentHashMap.newKeySet();   // prepared since the index dropped objects
     volatile boolean isRunning = false;
     volatile boolean cancelled = false;
+    volatile boolean collecting = false;
+    volatile long gcBudgetMB = Long.getLong("ctlauncher.gcBudgetMB", 0);
     
-    static class VersionInfo {
-        String id, type, jsonUrl, mainClass, assetId, assetUrl, clientUrl;
-        int javaVersion = 8;
-        List<LibInfo> libraries = new ArrayList<>();
+    // One manifest entry. Immutable and small: the type is interned (a handful of distinct values over
+    // hundreds of entries) and everything from the version JSON lives in VersionDetails instead.
+    static final class VersionInfo {
+        final String id, type, jsonUrl, jsonSha1;
+        VersionInfo(String id, String type, String jsonUrl, String jsonSha1) {
+            this.id = id; this.type = type == null ? null : type.intern(); this.jsonUrl = jsonUrl; this.jsonSha1 = jsonSha1;
+        }
+    }
+    
+    // What prepare needs from one version JSON, read out of the parsed tree once; the tree itself is
+    // not kept. Libraries and arguments are already filtered by their rules for this platform.
+    static final class VersionDetails {
+        final String mainClass, assetId, assetUrl, assetSha1, clientUrl, clientSha1, minecraftArgs;
+        final long assetSize, clientSize;
+        final int javaReq;
+        final List<LibInfo> libraries;
+        final List<String> jvmArgs, gameArgs;
+        
+        VersionDetails(Object json) {
+            mainClass = Json.str(json, "mainClass");
+            javaReq = (int) Math.max(0, Json.num(Json.obj(json, "javaVersion"), "majorVersion"));
+            Map<?, ?> ai = Json.obj(json, "assetIndex"), cl = Json.obj(Json.obj(json, "downloads"), "client");
+            String a = Json.str(json, "assets");
+            if (a == null) a = Json.str(ai, "id");
+            assetId = a != null ? a : "legacy";
+            assetUrl = Json.str(ai, "url"); assetSha1 = Json.str(ai, "sha1"); assetSize = ai != null ? Json.num(ai, "size") : -1;
+            clientUrl = Json.str(cl, "url"); clientSha1 = Json.str(cl, "sha1"); clientSize = cl != null ? Json.num(cl, "size") : -1;
+            minecraftArgs = Json.str(json, "minecraftArguments");
+            List<LibInfo> libs = new ArrayList<>();
+            parseLibs(libs, json);
+            libraries = Collections.unmodifiableList(libs);
+            List<String> jvm = new ArrayList<>(), game = new ArrayList<>();
+            args(Json.arr(Json.obj(json, "arguments"), "jvm"), jvm);
+            args(Json.arr(Json.obj(json, "arguments"), "game"), game);
+            jvmArgs = List.copyOf(jvm); gameArgs = List.copyOf(game);
+        }
     }
     
     static class LibInfo {
-        String name, artifactPath, artifactUrl, nativePath, nativeUrl;
+        String name, artifactPath, artifactUrl, artifactSha1, nativePath, nativeUrl, nativeSha1;
+        long artifactSize = -1, nativeSize = -1;
         boolean hasNatives;
     }
     
+    static class DlJob {
+        final String url, path, sha1;
+        final long size;
+        Runnable then;
+        DlJob(String url, String path, String sha1, long size) { this.url = url; this.path = path; this.sha1 = sha1; this.size = size; }
+    }
+    
+    // Jobs handed from a producer to fetchAll's workers while it may still be adding more. total counts
+    // every job offered so far; finish() marks the last one (or the producer's failure).
+    static final class JobQueue {
+        final BlockingQueue<DlJob> jobs = new LinkedBlockingQueue<>();
+        final AtomicInteger total = new AtomicInteger();
+        volatile boolean done;
+        volatile Exception failure;
+        volatile int objects;
+        
+        void offer(DlJob j) { total.incrementAndGet(); jobs.add(j); }
+        void finish(Exception e) { failure = e; done = true; }
+        
+        static JobQueue of(List<DlJob> list) {
+            JobQueue q = new JobQueue();
+            for (DlJob j : list) q.offer(j);
+            q.finish(null);
+            return q;
+        }
+    }
+    
+    // Open-addressing set of SHA-1 digests, each with a long (the object's size). Keys are packed
+    // 20 bytes apiece into one array in insertion order, so index k's digest is keys[20k..20k+20).
+    // Used for parsed asset indexes and for the verified-file index's assets/objects entries.
+    static final class DigestSet {
+        static final long ABSENT = Long.MIN_VALUE;
+        byte[] keys = new byte[20 * 256];
+        long[] vals = new long[256];
+        int[] slots = new int[512];
+        int count;
+        
+        int slot(byte[] d, int off) {
+            int h = (word(d, off) ^ word(d, off + 16)) * 0x9E3779B9, m = slots.length - 1;
+            h ^= h >>> 16;
+            for (int s = h & m; ; s = (s + 1) & m) {
+                int k = slots[s] - 1;
+                if (k < 0 || Arrays.equals(keys, k * 20, k * 20 + 20, d, off, off + 20)) return s;
+            }
+        }
+        
+        synchronized long get(byte[] d, int off) { int k = slots[slot(d, off)] - 1; return k < 0 ? ABSENT : vals[k]; }
+        
+        // Adds or updates; true when the digest was not present before
+        synchronized boolean put(byte[] d, int off, long val) {
+            int s = slot(d, off), k = slots[s] - 1;
+            if (k >= 0) { vals[k] = val; return false; }
+            if (count == vals.length) { keys = Arrays.copyOf(keys, count * 40); vals = Arrays.copyOf(vals, count * 2); }
+            System.arraycopy(d, off, keys, count * 20, 20);
+            vals[count] = val;
+            slots[s] = ++count;
+            if (count * 2 > slots.length) rehash();
+            return true;
+        }
+        
+        synchronized void clear() { Arrays.fill(slots, 0); count = 0; }
+        
+        static int word(byte[] d, int off) { return (d[off] & 0xff) << 24 | (d[off + 1] & 0xff) << 16 | (d[off + 2] & 0xff) << 8 | (d[off + 3] & 0xff); }
+        
+        void rehash() {
+            slots = new int[slots.length * 2];
+            for (int k = 0; k < count; k++) slots[slot(keys, k * 20)] = k + 1;
+        }
+        
+        void hex(int k, char[] out) {
+            for (int j = 0; j < 20; j++) { byte v = keys[k * 20 + j]; out[2 * j] = Character.forDigit((v >> 4) & 15, 16); out[2 * j + 1] = Character.forDigit(v & 15, 16); }
+        }
+        
+        static boolean unhex(CharSequence s, byte[] dst) {
+            if (s == null || s.length() != 40) return false;
+            for (int j = 0; j < 20; j++) {
+                int hi = Character.digit(s.charAt(2 * j), 16), lo = Character.digit(s.charAt(2 * j + 1), 16);
+                if (hi < 0 || lo < 0) return false;
+                dst[j] = (byte) (hi << 4 | lo);
+            }
+            return true;
+        }
+    }
+    
+    // Files whose size and sha1 were verified, persisted across runs so a warm launch can answer
+    // "is this artifact installed and intact?" from memory instead of stat-ing thousands of files.
+    // Invalidation, the same on every load: each library, jar and index entry (a few hundred) is compared
+    // against the disk (size + mtime) and dropped when it disagrees. The thousands of asset objects are only
+    // re-checked in the assets/objects/xx/ directories whose mtime moved since the index was saved, since
+    // removing or adding a file there is what changes it. When another process (a --gc run, another
+    // launcher) has rewritten the file since this one read or wrote it, the next load() reads it again.
+    static class FileIndex {
+        static final int MAGIC = 0x43544649, FORMAT = 2;
+        static final String OBJECTS = "assets/objects/";
+        
+        static final class Entry {
+            final long size, mtime; final String sha1;
+            Entry(long size, long mtime, String sha1) { this.size = size; this.mtime = mtime; this.sha1 = sha1; }
+        }
+        
+        final String root;
+        final File file;
+        final Map<String, Entry> entries = new ConcurrentHashMap<>();
+        final DigestSet objects = new DigestSet();   // verified asset objects: digest -> size
+        volatile boolean loaded, dirty, objectsDropped;
+        long stamp;   // the file's mtime and length when this process last read or wrote it
+        
+        FileIndex(String root) { this.root = root; this.file = new File(root + "cache/files.idx"); }
+        
+        String key(String path) { return path.startsWith(root) ? path.substring(root.length()) : path; }
+        
+        long stamp() { return file.lastModified() * 31 + file.length(); }
+        
+        synchronized void load() {
+            if (loaded && stamp == stamp()) return;
+            if (loaded) { entries.clear(); objects.clear(); dirty = false; }
+            loaded = true;
+            stamp = stamp();
+            if (!file.isFile()) return;
+            Map<String, Long> objectDirs = new HashMap<>();   // assets/objects/xx/ -> its mtime when saved
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT) return;
+                for (int n = in.readInt(); n > 0; n--) entries.put(in.readUTF(), new Entry(in.readLong(), in.readLong(), in.readUTF()));
+                for (int n = in.readInt(); n > 0; n--) objectDirs.put(in.readUTF(), in.readLong());
+            } catch (IOException e) { entries.clear(); return; }
+            Map<String, Boolean> moved = new HashMap<>();
+            int before = entries.size();
+            entries.keySet().removeIf(k -> {
+                if (!k.startsWith(OBJECTS)) return !onDisk(k);
+                String d = objectDir(k);
+                boolean gone = moved.computeIfAbsent(d, x -> objectDirs.getOrDefault(x, -1L) != new File(root + x).lastModified()) && !onDisk(k);
+                if (gone) objectsDropped = true;
+                return gone;
+            });
+            if (entries.size() != before) dirty = true;
+            entries.forEach((k, e) -> object(k, e.sha1, e.size));
+        }
+        
+        // Mirrors an assets/objects entry into the digest set; only when its content hash is its name
+        void object(String key, String sha1, long size) {
+            byte[] d = new byte[20];
+            if (key.startsWith(OBJECTS) && key.endsWith(sha1) && DigestSet.unhex(sha1, d)) objects.put(d, 0, size);
+        }
+        
+        // Indexed and still at the size and mtime it was verified with: one stat, no hashing
+        boolean intact(String path) { return onDisk(key(path)); }
+        
+        boolean onDisk(String key) {
+            Entry e = entries.get(key); File f = new File(root + key);
+            return e != null && f.length() == e.size && f.lastModified() == e.mtime;
+        }
+        
+        static String objectDir(String key) { return key.substring(0, Math.min(key.length(), OBJECTS.length() + 3)); }
+        
+        // Memory only; a null sha1 or negative size means "not known", which any entry satisfies
+        boolean has(String path, long size, String sha1) {
+            Entry e = entries.get(key(path));
+            return e != null && (size < 0 || e.size == size) && (sha1 == null || sha1.equalsIgnoreCase(e.sha1));
+        }
+        
+        void put(String path, String sha1) {
+            File f = new File(path);
+            String k = key(path);
+            Entry e = new Entry(f.length(), f.lastModified(), sha1.toLowerCase());
+            entries.put(k, e);
+            object(k, e.sha1, e.size);
+            dirty = true;
+        }
+        
+        void remove(String path) {
+            String k = key(path);
+            Entry e = entries.remove(k);
+            if (e == null) return;
+            object(k, e.sha1, DigestSet.ABSENT);
+            dirty = true;
+        }
+        
+        synchronized void save() throws IOException {
+            if (!dirty) return;
+            dirty = false;
+            file.getParentFile().mkdirs();
+            File tmp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                List<Map.Entry<String, Entry>> snap = new ArrayList<>(entries.entrySet());
+                out.writeInt(MAGIC); out.writeInt(FORMAT); out.writeInt(snap.size());
+                for (Map.Entry<String, Entry> me : snap) {
+                    Entry e = me.getValue();
+                    out.writeUTF(me.getKey()); out.writeLong(e.size); out.writeLong(e.mtime); out.writeUTF(e.sha1);
+                }
+                Set<String> dirs = new TreeSet<>();
+                for (Map.Entry<String, Entry> me : snap) if (me.getKey().startsWith(OBJECTS)) dirs.add(objectDir(me.getKey()));
+                out.writeInt(dirs.size());
+                for (String d : dirs) { out.writeUTF(d); out.writeLong(new File(root + d).lastModified()); }
+            }
+            moveIntoPlace(tmp.toPath(), file.toPath());
+            stamp = stamp();
+        }
+    }
+    
+    // Everything a launch of one version resolves to, written after a complete preparation so the next
+    // launch can go straight to spawning the JVM. The key covers what the plan was derived from (launcher
+    // version, version JSON sha1, OS); the Java binary is re-resolved from the installs found at startup
+    // and compared by path and mtime, and the classpath is checked against the verified-file index.
+    // JVM and game arguments are kept as ${...} templates; per-launch values (user, uuid, heap size)
+    // are only filled in when the command line is built.
+    static class LaunchPlan {
+        static final int MAGIC = 0x4354504C, FORMAT = 3;
+        String key, javaPath, mainClass, natDir, assetId, gameAssets, versionType;
+        long javaMtime;
+        int javaReq, javaVersion;
+        final List<String> classpath = new ArrayList<>(), jvmArgs = new ArrayList<>(), gameArgs = new ArrayList<>();
+        List<Template> jvm, game;
+        
+        List<Template> jvm() { if (jvm == null) jvm = Template.compileAll(jvmArgs); return jvm; }
+        List<Template> game() { if (game == null) game = Template.compileAll(gameArgs); return game; }
+        
+        static LaunchPlan read(File f) {
+            if (!f.isFile()) return null;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT) return null;
+                LaunchPlan p = new LaunchPlan();
+                p.key = in.readUTF(); p.javaPath = in.readUTF(); p.mainClass = in.readUTF(); p.natDir = in.readUTF(); p.assetId = in.readUTF(); p.gameAssets = in.readUTF(); p.versionType = in.readUTF();
+                p.javaMtime = in.readLong(); p.javaReq = in.readInt(); p.javaVersion = in.readInt();
+                for (List<String> l : List.of(p.classpath, p.jvmArgs, p.gameArgs)) for (int n = in.readInt(); n > 0; n--) l.add(in.readUTF());
+                return p;
+            } catch (IOException e) { return null; }
+        }
+        
+        void write(File f) throws IOException {
+            File tmp = new File(f.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC); out.writeInt(FORMAT);
+                out.writeUTF(key); out.writeUTF(javaPath); out.writeUTF(mainClass); out.writeUTF(natDir); out.writeUTF(assetId); out.writeUTF(gameAssets); out.writeUTF(versionType);
+                out.writeLong(javaMtime); out.writeInt(javaReq); out.writeInt(javaVersion);
+                for (List<String> l : List.of(classpath, jvmArgs, gameArgs)) { out.writeInt(l.size()); for (String s : l) out.writeUTF(s); }
+            }
+            moveIntoPlace(tmp.toPath(), f.toPath());
+        }
+    }
+    
+    // The ${...} placeholders the launcher fills in. Argument rules keep the ones it cannot provide
+    // (resolution, quick play) out of the command line; any other unknown name is left as written.
+    enum Var {
+        AUTH_PLAYER_NAME, AUTH_UUID, AUTH_ACCESS_TOKEN, AUTH_SESSION, AUTH_XUID, CLIENTID, USER_TYPE, USER_PROPERTIES,
+        VERSION_NAME, VERSION_TYPE, GAME_DIRECTORY, ASSETS_ROOT, GAME_ASSETS, ASSETS_INDEX_NAME,
+        NATIVES_DIRECTORY, LIBRARY_DIRECTORY, CLASSPATH, CLASSPATH_SEPARATOR, LAUNCHER_NAME, LAUNCHER_VERSION;
+        
+        static final Map<String, Var> BY_NAME = new HashMap<>();
+        static { for (Var v : values()) BY_NAME.put(v.name().toLowerCase(), v); }
+    }
+    
+    // Values for one launch
+    static final class LaunchContext {
+        String user, uuid, accessToken = "0", userType = "legacy", versionName, versionType;
+        String gameDir, assetsRoot, gameAssets, assetIndex, nativesDir, libraryDir, classpath, launcherName, launcherVersion;
+        
+        String get(Var v) {
+            switch (v) {
+                case AUTH_PLAYER_NAME: return user;
+                case AUTH_UUID: return uuid;
+                case AUTH_ACCESS_TOKEN: case AUTH_SESSION: return accessToken;
+                case AUTH_XUID: case CLIENTID: return "";
+                case USER_TYPE: return userType;
+                case USER_PROPERTIES: return "{}";
+                case VERSION_NAME: return versionName;
+                case VERSION_TYPE: return versionType;
+                case GAME_DIRECTORY: return gameDir;
+                case ASSETS_ROOT: return assetsRoot;
+                case GAME_ASSETS: return gameAssets;
+                case ASSETS_INDEX_NAME: return assetIndex;
+                case NATIVES_DIRECTORY: return nativesDir;
+                case LIBRARY_DIRECTORY: return libraryDir;
+                case CLASSPATH: return classpath;
+                case CLASSPATH_SEPARATOR: return File.pathSeparator;
+                case LAUNCHER_NAME: return launcherName;
+                default: return launcherVersion;
+            }
+        }
+    }
+    
+    // One argument split into literal text and placeholders when it is compiled, so a launch only
+    // concatenates: lits[0] vars[0] lits[1] ... vars[n-1] lits[n]
+    static final class Template {
+        final String[] lits;
+        final Var[] vars;
+        Template(String[] lits, Var[] vars) { this.lits = lits; this.vars = vars; }
+        
+        static Template compile(String s) {
+            List<String> lits = new ArrayList<>(); List<Var> vars = new ArrayList<>();
+            StringBuilder lit = new StringBuilder();
+            int i = 0;
+            for (int open; (open = s.indexOf("${", i)) >= 0; ) {
+                int close = s.indexOf('}', open);
+                if (close < 0) break;
+                Var v = Var.BY_NAME.get(s.substring(open + 2, close));
+                lit.append(s, i, open);
+                if (v == null) lit.append(s, open, close + 1);
+                else { lits.add(lit.toString()); vars.add(v); lit.setLength(0); }
+                i = close + 1;
+            }
+            lits.add(lit.append(s, i, s.length()).toString());
+            return new Template(lits.toArray(new String[0]), vars.toArray(new Var[0]));
+        }
+        
+        static List<Template> compileAll(List<String> args) {
+            List<Template> out = new ArrayList<>(args.size());
+            for (String a : args) out.add(compile(a));
+            return out;
+        }
+        
+        String expand(LaunchContext c) {
+            if (vars.length == 0) return lits[0];
+            StringBuilder sb = new StringBuilder(lits[0]);
+            for (int k = 0; k < vars.length; k++) { String v = c.get(vars[k]); sb.append(v != null ? v : "").append(lits[k + 1]); }
+            return sb.toString();
+        }
+    }
+    
+    // For versions whose JSON has no arguments.jvm (before 1.13)
+    static final List<String> CLASSIC_JVM_ARGS = List.of("-Djava.library.path=${natives_directory}",
+        "-Dminecraft.launcher.brand=${launcher_name}", "-Dminecraft.launcher.version=${launcher_version}", "-cp", "${classpath}");
+    // For a version JSON with neither arguments.game nor minecraftArguments
+    static final String CLASSIC_GAME_ARGS = "--username ${auth_player_name} --version ${version_name} --gameDir ${game_directory} "
+        + "--assetsDir ${assets_root} --assetIndex ${assets_index_name} --uuid ${auth_uuid} --accessToken ${auth_access_token} "
+        + "--userType ${user_type} --versionType ${version_type}";
+    
+    // The version's game arguments: modern arguments.game, else the legacy minecraftArguments string
+    static List<String> gameArgs(VersionDetails d) {
+        if (!d.gameArgs.isEmpty()) return d.gameArgs;
+        String legacy = d.minecraftArgs != null && !d.minecraftArgs.isBlank() ? d.minecraftArgs : CLASSIC_GAME_ARGS;
+        return Arrays.asList(legacy.trim().split("\\s+"));
+    }
+    
+    // Wall time and I/O counters for each runGame phase. The network and verify paths bump the
+    // counters; phase() closes the running phase with the deltas since it began.
+    static class LaunchProfile {
+        static final class Phase {
+            final String name; final long nanos, bytes, checked, fetched, retries;
+            Phase(String name, long nanos, long bytes, long checked, long fetched, long retries) {
+                this.name = name; this.nanos = nanos; this.bytes = bytes; this.checked = checked; this.fetched = fetched; this.retries = retries;
+            }
+            double rate() { return nanos > 0 ? bytes * 1e9 / nanos : 0; }
+        }
+        
+        final AtomicLong bytes = new AtomicLong(), checked = new AtomicLong(), fetched = new AtomicLong(), retries = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();   // downloads (or the asset step) given up on; a plan is only saved without any
+        final List<Phase> phases = new ArrayList<>();
+        final long started = System.currentTimeMillis();
+        volatile String outcome = "ok";
+        volatile boolean detached;
+        String current;
+        long t0, b0, c0, f0, r0;
+        boolean closed;
+        
+        synchronized void phase(String name) {
+            end();
+            current = name; t0 = System.nanoTime();
+            b0 = bytes.get(); c0 = checked.get(); f0 = fetched.get(); r0 = retries.get();
+        }
+        
+        synchronized void end() {
+            if (current == null) return;
+            phases.add(new Phase(current, System.nanoTime() - t0, bytes.get() - b0, checked.get() - c0, fetched.get() - f0, retries.get() - r0));
+            current = null;
+        }
+        
+        // Ends the last phase; true only for the first caller, so the report is written once
+        synchronized boolean close() {
+            end();
+            if (closed) return false;
+            return closed = true;
+        }
+        
+        synchronized Phase total() {
+            long n = 0, b = 0, c = 0, f = 0, r = 0;
+            for (Phase p : phases) { n += p.nanos; b += p.bytes; c += p.checked; f += p.fetched; r += p.retries; }
+            return new Phase("Total", n, b, c, f, r);
+        }
+        
+        synchronized List<String> table() {
+            List<String> rows = new ArrayList<>();
+            rows.add(String.format("%-14s %8s %8s %8s %7s %10s %11s", "Phase", "Time", "Checked", "Fetched", "Retries", "Data", "Rate"));
+            List<Phase> all = new ArrayList<>(phases); all.add(total());
+            for (Phase p : all) rows.add(String.format("%-14s %7.2fs %8d %8d %7d %7.1f MB %6.1f MB/s",
+                p.name, p.nanos / 1e9, p.checked, p.fetched, p.retries, p.bytes / 1048576.0, p.rate() / 1048576));
+            return rows;
+        }
+        
+        synchronized String json(String id) {
+            StringBuilder sb = new StringBuilder("{\n");
+            sb.append("  \"launcher\": \"").append(NAME).append(' ').append(VER).append("\",\n");
+            sb.append("  \"version\": \"").append(id.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+            sb.append("  \"started\": \"").append(java.time.Instant.ofEpochMilli(started)).append("\",\n");
+            sb.append("  \"outcome\": \"").append(outcome.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+            sb.append("  \"phases\": [\n");
+            List<Phase> all = new ArrayList<>(phases); all.add(total());
+            for (int i = 0; i < all.size(); i++) {
+                Phase p = all.get(i);
+                sb.append(String.format(Locale.ROOT, "    {\"name\": \"%s\", \"ms\": %d, \"bytes\": %d, \"checked\": %d, \"fetched\": %d, \"retries\": %d, \"bytesPerSec\": %d}%s\n",
+                    p.name, p.nanos / 1_000_000, p.bytes, p.checked, p.fetched, p.retries, (long) p.rate(), i + 1 < all.size() ? "," : ""));
+            }
+            return sb.append("  ]\n}\n").toString();
+        }
+    }
+    
     public static void main(String[] args) {
+        for (String a : args) if (a.startsWith("--gc")) System.exit(CacheGC.cli(gameDir(), args));
         try { UIManager.setLookAndFeel(UIManager.getCrossPlatformLookAndFeelClassName()); } catch (Exception e) {}
         SwingUtilities.invokeLater(CTLauncherHDR::new);
     }
     
-    public CTLauncherHDR() {
+    static String gameDir() {
         String os = System.getProperty("os.name").toLowerCase();
         String home = System.getProperty("user.home");
         
-        if (os.contains("win")) MC_DIR = System.getenv("APPDATA") + File.separator + ".ctlauncher" + File.separator;
-        else if (os.contains("mac")) MC_DIR = home + "/Library/Application Support/CTLauncher/";
-        else MC_DIR = home + "/.ctlauncher/";
-        
+        if (os.contains("win")) return System.getenv("APPDATA") + File.separator + ".ctlauncher" + File.separator;
+        if (os.contains("mac")) return home + "/Library/Application Support/CTLauncher/";
+        return home + "/.ctlauncher/";
+    }
+    
+    public CTLauncherHDR() {
+        MC_DIR = gameDir();
         VERSIONS_DIR = MC_DIR + "versions/";
         LIBRARIES_DIR = MC_DIR + "libraries/";
         ASSETS_DIR = MC_DIR + "assets/";
@@ -94,8 +571,11 @@ public class CTLauncherHDR extends JFrame {
         for (String d : new String[]{MC_DIR, VERSIONS_DIR, LIBRARIES_DIR, ASSETS_DIR + "indexes/", ASSETS_DIR + "objects/", NATIVES_DIR, MODS_DIR})
             new File(d).mkdirs();
         
+        files = new FileIndex(MC_DIR);
+        warmUp();
         detectJavaInstalls();
         initUI();
+        if (Boolean.getBoolean("ctlauncher.share")) setSharing(true);
         loadVersionManifest();
     }
     
@@ -276,6 +756,7 @@ public class CTLauncherHDR extends JFrame {
         versionCombo = new JComboBox<>();
         styleComboBox(versionCombo);
         versionCombo.addItem("Loading...");
+        versionFilter = new VersionFilter(versionCombo);
         versionCombo.setMaximumSize(new Dimension(330, 45));
         versionCombo.setAlignmentX(LEFT_ALIGNMENT);
         launchCard.add(versionCombo);
@@ -516,7 +997,7 @@ public class CTLauncherHDR extends JFrame {
             BorderFactory.createLineBorder(C_BORDER),
             BorderFactory.createEmptyBorder(20, 20, 20, 20)
         ));
-        dirCard.setMaximumSize(new Dimension(550, 100));
+        dirCard.setMaximumSize(new Dimension(550, 130));
         dirCard.setAlignmentX(LEFT_ALIGNMENT);
         
         JLabel dirTitle = new JLabel("📁 Game Directory");
@@ -538,9 +1019,91 @@ public class CTLauncherHDR extends JFrame {
         openDir.addActionListener(e -> {
             try { Desktop.getDesktop().open(new File(MC_DIR)); } catch (Exception ex) {}
         });
-        dirCard.add(openDir, BorderLayout.SOUTH);
+        JButton cleanDir = new JButton("Clean Up");
+        cleanDir.setFont(new Font("SansSerif", Font.PLAIN, 11));
+        cleanDir.setForeground(C_ACCENT);
+        cleanDir.setBackground(C_BG_HOVER);
+        cleanDir.setBorderPainted(false);
+        cleanDir.setFocusPainted(false);
+        cleanDir.setCursor(new Cursor(Cursor.HAND_CURSOR));
+        cleanDir.addActionListener(e -> cleanUp());
+        
+        JPanel dirButtons = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 0));
+        dirButtons.setBackground(C_BG_CARD);
+        dirButtons.add(openDir);
+        dirButtons.add(cleanDir);
+        JPanel dirRow = new JPanel(new BorderLayout(10, 0));
+        dirRow.setBackground(C_BG_CARD);
+        dirRow.add(dirButtons, BorderLayout.WEST);
+        JPanel budgetRow = new JPanel(new BorderLayout(10, 0));
+        budgetRow.setBackground(C_BG_CARD);
+        budgetRow.add(new JLabel("<html><font color='#8c8c9b'>Cache budget in MB (0 = none)</font></html>"), BorderLayout.CENTER);
+        // Shown within the spinner's range; a larger -Dctlauncher.gcBudgetMB stays in effect until the spinner is changed
+        JSpinner budgetSpinner = new JSpinner(new SpinnerNumberModel((int) Math.max(0, Math.min(gcBudgetMB, 1048576)), 0, 1048576, 1024));
+        styleSpinner(budgetSpinner);
+        budgetSpinner.setPreferredSize(new Dimension(100, 30));
+        budgetSpinner.addChangeListener(e -> gcBudgetMB = (Integer) budgetSpinner.getValue());
+        budgetRow.add(budgetSpinner, BorderLayout.EAST);
+        dirRow.add(budgetRow, BorderLayout.EAST);
+        dirCard.add(dirRow, BorderLayout.SOUTH);
         
         content.add(dirCard);
+        content.add(Box.createVerticalStrut(15));
+        // Network
+        JPanel netCard = new JPanel(new BorderLayout(10, 10));
+        netCard.setBackground(C_BG_CARD);
+        netCard.setBorder(BorderFactory.createCompoundBorder(
+            BorderFactory.createLineBorder(C_BORDER),
+            BorderFactory.createEmptyBorder(20, 20, 20, 20)
+        ));
+        netCard.setMaximumSize(new Dimension(550, 220));
+        netCard.setAlignmentX(LEFT_ALIGNMENT);
+        
+        JLabel netTitle = new JLabel("🌐 Network");
+        netTitle.setFont(new Font("SansSerif", Font.BOLD, 14));
+        netTitle.setForeground(C_TEXT);
+        netCard.add(netTitle, BorderLayout.NORTH);
+        
+        JPanel netRows = new JPanel(new GridLayout(3, 1, 0, 8));
+        netRows.setBackground(C_BG_CARD);
+        
+        JPanel bwRow = new JPanel(new BorderLayout(10, 0));
+        bwRow.setBackground(C_BG_CARD);
+        bwRow.add(new JLabel("<html><font color='#8c8c9b'>Download bandwidth limit in KB/s (0 = unlimited)</font></html>"), BorderLayout.CENTER);
+        // Shown within the spinner's range; a larger -Dctlauncher.maxKBps stays in effect until the spinner is changed
+        JSpinner bwSpinner = new JSpinner(new SpinnerNumberModel((int) Math.max(0, Math.min(BANDWIDTH.rate / 1024, 1048576)), 0, 1048576, 256));
+        styleSpinner(bwSpinner);
+        bwSpinner.setPreferredSize(new Dimension(100, 30));
+        bwSpinner.addChangeListener(e -> BANDWIDTH.rate = (Integer) bwSpinner.getValue() * 1024L);
+        bwRow.add(bwSpinner, BorderLayout.EAST);
+        netRows.add(bwRow);
+        
+        JCheckBox shareBox = createBoosterToggle("Share downloads on LAN", "Other launchers can fetch assets and libraries from this PC (port " + PEER_PORT + ")", Boolean.getBoolean("ctlauncher.share"));
+        shareBox.addActionListener(e -> setSharing(shareBox.isSelected()));
+        netRows.add(shareBox);
+        
+        JPanel peerRow = new JPanel(new BorderLayout(10, 0));
+        peerRow.setBackground(C_BG_CARD);
+        peerRow.add(new JLabel("<html><font color='#8c8c9b'>LAN peers (host[:port], comma separated)</font></html>"), BorderLayout.WEST);
+        JTextField peerField = new JTextField(String.join(", ", peers));
+        peerField.setFont(new Font("SansSerif", Font.PLAIN, 12));
+        peerField.setBackground(C_BG_DARK);
+        peerField.setForeground(C_TEXT);
+        peerField.setCaretColor(C_ACCENT);
+        peerField.setBorder(BorderFactory.createCompoundBorder(
+            BorderFactory.createLineBorder(C_BORDER),
+            BorderFactory.createEmptyBorder(4, 8, 4, 8)
+        ));
+        peerField.addActionListener(e -> peers = parsePeers(peerField.getText()));
+        peerField.addFocusListener(new FocusAdapter() {
+            @Override public void focusLost(FocusEvent e) { peers = parsePeers(peerField.getText()); }
+        });
+        peerRow.add(peerField, BorderLayout.CENTER);
+        netRows.add(peerRow);
+        
+        netCard.add(netRows, BorderLayout.CENTER);
+        
+        content.add(netCard);
         content.add(Box.createVerticalStrut(20));
         
         // About
@@ -586,11 +1149,12 @@ public class CTLauncherHDR extends JFrame {
         cb.setForeground(C_TEXT);
         cb.setBorder(BorderFactory.createLineBorder(C_BORDER));
         cb.setRenderer(new DefaultListCellRenderer() {
+            final Border pad = BorderFactory.createEmptyBorder(8, 12, 8, 12);
             @Override public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean sel, boolean focus) {
                 super.getListCellRendererComponent(list, value, index, sel, focus);
                 setBackground(sel ? C_ACCENT : C_BG_CARD);
                 setForeground(sel ? C_BG_DARK : C_TEXT);
-                setBorder(BorderFactory.createEmptyBorder(8, 12, 8, 12));
+                setBorder(pad);
                 return this;
             }
         });
@@ -766,49 +1330,206 @@ public class CTLauncherHDR extends JFrame {
     static boolean isMacOS() { return System.getProperty("os.name", "").toLowerCase().contains("mac"); }
     static boolean isAppleSilicon() { return isMacOS() && System.getProperty("os.arch", "").contains("aarch64"); }
     
+    // The last manifest is kept under cache/ and shown at once; the network copy is then revalidated
+    // with its ETag / Last-Modified and only replaces the list when it actually changed. Offline, the
+    // cached list is what there is, which is enough to launch anything already installed.
     void loadVersionManifest() {
         new Thread(() -> {
-            status("Loading versions...");
+            File cache = new File(MC_DIR + "cache/version_manifest_v2.json"), tags = new File(MC_DIR + "cache/version_manifest_v2.tags");
+            String cached = null;
+            if (cache.isFile()) {
+                try {
+                    String text = new String(Files.readAllBytes(cache.toPath()), StandardCharsets.UTF_8);
+                    showVersions(text);
+                    cached = text;
+                    status("Ready - " + versions.size() + " versions (cached)");
+                } catch (Exception e) { cached = null; }
+            }
+            if (cached == null) status("Loading versions...");
             try {
-                String json = http(MANIFEST_URL);
-                int pos = 0;
-                while (true) {
-                    int i = json.indexOf("\"id\"", pos);
-                    if (i == -1) break;
-                    int s = json.lastIndexOf("{", i), e = brace(json, s);
-                    if (e == -1) break;
-                    String o = json.substring(s, e + 1);
-                    VersionInfo v = new VersionInfo();
-                    v.id = jstr(o, "id"); v.type = jstr(o, "type"); v.jsonUrl = jstr(o, "url");
-                    if (v.id != null && v.jsonUrl != null) versions.put(v.id, v);
-                    pos = e + 1;
-                }
-                SwingUtilities.invokeLater(() -> {
-                    versionCombo.removeAllItems();
-                    versionCombo.addItem("═══ RELEASES ═══");
-                    for (VersionInfo v : versions.values()) {
-                        if ("release".equals(v.type)) {
-                            String label = v.id;
-                            if ((v.id.startsWith("1.21") || v.id.startsWith("1.20.5") || v.id.startsWith("1.20.6")) && !javaInstalls.containsKey(21)) 
-                                label += " ⚠ Java 21";
-                            versionCombo.addItem(label);
-                        }
+                List<String> h = new ArrayList<>(List.of("Accept", "application/json", "Accept-Encoding", "gzip"));
+                List<String> t = cached != null && tags.isFile() ? Files.readAllLines(tags.toPath()) : List.of();
+                if (t.size() > 0 && !t.get(0).isEmpty()) { h.add("If-None-Match"); h.add(t.get(0)); }
+                if (t.size() > 1 && !t.get(1).isEmpty()) { h.add("If-Modified-Since"); h.add(t.get(1)); }
+                String[] got = fetch(MANIFEST_URL, (r, in) -> r.statusCode() == 304 ? null
+                    : new String[] {body(r, in), r.headers().firstValue("ETag").orElse(""), r.headers().firstValue("Last-Modified").orElse("")}, h.toArray(new String[0]));
+                if (got != null) {
+                    if (!got[0].equals(cached)) {
+                        showVersions(got[0]);
+                        Path tmp = Paths.get(cache + ".tmp");
+                        Files.write(tmp, got[0].getBytes(StandardCharsets.UTF_8));
+                        moveIntoPlace(tmp, cache.toPath());
                     }
-                    versionCombo.addItem("═══ SNAPSHOTS ═══");
-                    for (VersionInfo v : versions.values()) if ("snapshot".equals(v.type)) versionCombo.addItem(v.id);
-                    versionCombo.addItem("═══ BETA ═══");
-                    for (VersionInfo v : versions.values()) if ("old_beta".equals(v.type)) versionCombo.addItem(v.id);
-                    versionCombo.addItem("═══ ALPHA ═══");
-                    for (VersionInfo v : versions.values()) if ("old_alpha".equals(v.type)) versionCombo.addItem(v.id);
-                    if (versionCombo.getItemCount() > 1) versionCombo.setSelectedIndex(1);
-                });
+                    Files.write(tags.toPath(), List.of(got[1], got[2]));
+                }
                 status("Ready - " + versions.size() + " versions");
-            } catch (Exception ex) { status("Error: " + ex.getMessage()); }
+            } catch (Exception ex) { status(cached != null ? "Offline - " + versions.size() + " cached versions" : "Error: " + ex.getMessage()); }
         }).start();
     }
     
+    // Parses a version manifest into a fresh map and rebuilds the combo from it, keeping the selection
+    void showVersions(String manifest) {
+        Map<String, VersionInfo> vs = new LinkedHashMap<>();
+        for (Object o : Json.arr(Json.parse(manifest), "versions")) {
+            VersionInfo v = new VersionInfo(Json.str(o, "id"), Json.str(o, "type"), Json.str(o, "url"), Json.str(o, "sha1"));
+            if (v.id != null && v.jsonUrl != null) vs.put(v.id, v);
+        }
+        versions = vs;
+        VersionList list = new VersionList();
+        list.header("═══ RELEASES ═══");
+        for (VersionInfo v : vs.values()) {
+            if ("release".equals(v.type)) {
+                String label = v.id;
+                if ((v.id.startsWith("1.21") || v.id.startsWith("1.20.5") || v.id.startsWith("1.20.6")) && !javaInstalls.containsKey(21)) 
+                    label += " ⚠ Java 21";
+                list.add(label, v);
+            }
+        }
+        list.header("═══ SNAPSHOTS ═══");
+        for (VersionInfo v : vs.values()) if ("snapshot".equals(v.type)) list.add(v.id, v);
+        list.header("═══ BETA ═══");
+        for (VersionInfo v : vs.values()) if ("old_beta".equals(v.type)) list.add(v.id, v);
+        list.header("═══ ALPHA ═══");
+        for (VersionInfo v : vs.values()) if ("old_alpha".equals(v.type)) list.add(v.id, v);
+        list.seal();
+        SwingUtilities.invokeLater(() -> {
+            Object sel = versionCombo.getSelectedItem();
+            versionFilter.install(list);
+            if (versionCombo.getItemCount() > 1) versionCombo.setSelectedIndex(1);
+            if (sel != null) versionCombo.setSelectedItem(sel);
+        });
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // Version selector: the combo rows for a manifest are built off
+    // the EDT and installed with one setModel. Keys typed into the
+    // combo narrow it to the versions whose id or type starts with
+    // them, looked up in a sorted prefix index.
+    // ═══════════════════════════════════════════════════════════
+    static final class VersionList {
+        final List<String> rows = new ArrayList<>();
+        final List<String> keyList = new ArrayList<>();
+        int[] at = new int[64];
+        String[] keys;
+        DefaultComboBoxModel<String> model;
+
+        void header(String label) { rows.add(label); }
+
+        void add(String label, VersionInfo v) {
+            key(v.id);
+            if (v.type != null) {
+                key(v.type);
+                for (int i = v.type.indexOf('_'); i >= 0; i = v.type.indexOf('_', i + 1)) key(v.type.substring(i + 1));
+            }
+            rows.add(label);
+        }
+
+        void key(String k) {
+            int n = keyList.size();
+            if (n == at.length) at = Arrays.copyOf(at, n * 2);
+            at[n] = rows.size();
+            keyList.add(k.toLowerCase(Locale.ROOT));
+        }
+
+        /** Sorts the keys and builds the full model; nothing here touches Swing state that is on screen. */
+        VersionList seal() {
+            int n = keyList.size();
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> keyList.get(a).compareTo(keyList.get(b)));
+            keys = new String[n];
+            int[] rowOf = new int[n];
+            for (int i = 0; i < n; i++) { keys[i] = keyList.get(order[i]); rowOf[i] = at[order[i]]; }
+            at = rowOf;
+            model = new DefaultComboBoxModel<>(rows.toArray(new String[0]));
+            return this;
+        }
+
+        /** Rows with a key starting with {@code prefix}, in display order; null when there are none. */
+        DefaultComboBoxModel<String> filter(CharSequence prefix) {
+            String p = prefix.toString();
+            int lo = 0, hi = keys.length;
+            while (lo < hi) { int mid = (lo + hi) >>> 1; if (keys[mid].compareTo(p) < 0) lo = mid + 1; else hi = mid; }
+            BitSet hits = new BitSet(rows.size());
+            for (int i = lo; i < keys.length && keys[i].startsWith(p); i++) hits.set(at[i]);
+            if (hits.isEmpty()) return null;
+            String[] out = new String[hits.cardinality()];
+            for (int r = hits.nextSetBit(0), j = 0; r >= 0; r = hits.nextSetBit(r + 1)) out[j++] = rows.get(r);
+            return new DefaultComboBoxModel<>(out);
+        }
+    }
+
+    static final class VersionFilter extends KeyAdapter implements PopupMenuListener {
+        final JComboBox<String> cb;
+        final StringBuilder typed = new StringBuilder();
+        VersionList list;
+        boolean swapping;
+
+        VersionFilter(JComboBox<String> cb) {
+            this.cb = cb;
+            cb.setKeySelectionManager((key, model) -> -1);
+            cb.addKeyListener(this);
+            cb.addPopupMenuListener(this);
+        }
+
+        void install(VersionList l) {
+            list = l;
+            typed.setLength(0);
+            swap(l.model);
+        }
+
+        void swap(ComboBoxModel<String> m) {
+            swapping = true;
+            try {
+                boolean open = cb.isPopupVisible();
+                if (open) cb.hidePopup();
+                cb.setModel(m);
+                if ((open || typed.length() > 0) && cb.isShowing()) cb.showPopup();
+            } finally {
+                swapping = false;
+            }
+        }
+
+        void refilter() {
+            if (typed.length() == 0) { swap(list.model); return; }
+            DefaultComboBoxModel<String> m = list.filter(typed);
+            if (m == null) { typed.setLength(typed.length() - 1); Toolkit.getDefaultToolkit().beep(); return; }
+            swap(m);
+        }
+
+        @Override public void keyTyped(KeyEvent e) {
+            char c = e.getKeyChar();
+            if (list == null || c == KeyEvent.CHAR_UNDEFINED || Character.isISOControl(c)) return;
+            typed.append(Character.toLowerCase(c));
+            refilter();
+            e.consume();
+        }
+
+        @Override public void keyPressed(KeyEvent e) {
+            if (list == null || typed.length() == 0 || e.getKeyCode() != KeyEvent.VK_BACK_SPACE) return;
+            typed.setLength(typed.length() - 1);
+            refilter();
+            e.consume();
+        }
+
+        @Override public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
+            if (swapping || typed.length() == 0) return;
+            // Back to the full list once a filtered pick is made or dropped
+            typed.setLength(0);
+            SwingUtilities.invokeLater(() -> {
+                Object sel = cb.getSelectedItem();
+                swap(list.model);
+                if (sel != null) cb.setSelectedItem(sel);
+            });
+        }
+
+        @Override public void popupMenuWillBecomeVisible(PopupMenuEvent e) {}
+        @Override public void popupMenuCanceled(PopupMenuEvent e) {}
+    }
+    
     void onLaunch() {
         if (isRunning) { cancelled = true; return; }
+        if (collecting) { status("Cleaning up the game folder, try again in a moment"); return; }
         String sel = (String) versionCombo.getSelectedItem();
         if (sel == null || sel.startsWith("═══")) { status("Select a version!"); return; }
         if (sel.contains(" ⚠")) sel = sel.substring(0, sel.indexOf(" ⚠"));
@@ -825,6 +1546,82 @@ public class CTLauncherHDR extends JFrame {
         new Thread(() -> runGame(ver, u)).start();
     }
     
+    // Settings' clean up: a dry run of the cache GC, and what it found is deleted once the user agrees.
+    // Launching waits until it is done, and it does not start while a launch is being prepared.
+    void cleanUp() {
+        if (isRunning || collecting) { status("Busy, clean up after the launch"); return; }
+        collecting = true;
+        daemon("ct-gc").newThread(() -> {
+            try (FileChannel lock = gcLock(MC_DIR, false)) {
+                if (lock == null) { status("Another launcher is preparing a launch, clean up once it has started"); return; }
+                status("Looking for unused files...");
+                files.load();
+                CacheGC gc = new CacheGC(MC_DIR, files, this::log);
+                CacheGC.Result r = gc.scan(gcBudgetMB << 20);
+                if (r.garbage.isEmpty()) { status("Nothing to clean up"); return; }
+                int[] answer = {JOptionPane.CANCEL_OPTION};
+                SwingUtilities.invokeAndWait(() -> answer[0] = JOptionPane.showConfirmDialog(this, "Delete " + r.describe() + "?", "Clean Up", JOptionPane.OK_CANCEL_OPTION));
+                if (answer[0] != JOptionPane.OK_OPTION) { status("Clean up cancelled"); return; }
+                int n = gc.delete(r);
+                files.dirty = true;
+                files.save();
+                status(String.format(Locale.ROOT, "Cleaned up %d files, %.1f MB", n, r.freed / 1048576.0));
+            } catch (Exception e) {
+                status("Clean up failed: " + e.getMessage());
+            } finally { collecting = false; }
+        }).start();
+    }
+    
+    LaunchContext context(VersionInfo ver, LaunchPlan plan, String user, String uuid) {
+        LaunchContext c = new LaunchContext();
+        c.user = user; c.uuid = uuid; c.versionName = ver.id; c.versionType = plan.versionType;
+        c.gameDir = MC_DIR; c.assetsRoot = ASSETS_DIR; c.gameAssets = plan.gameAssets; c.assetIndex = plan.assetId;
+        c.nativesDir = plan.natDir; c.libraryDir = LIBRARIES_DIR; c.classpath = String.join(File.pathSeparator, plan.classpath);
+        c.launcherName = NAME; c.launcherVersion = VER;
+        return c;
+    }
+    
+    File planFile(VersionInfo ver) { return new File(VERSIONS_DIR + ver.id + "/" + ver.id + ".plan"); }
+    
+    static String planKey(VersionInfo ver) { return VER + "|" + ver.jsonSha1 + "|" + System.getProperty("os.name") + "|" + System.getProperty("os.arch"); }
+    
+    // The saved plan for ver when nothing it depends on has changed; no process is started and
+    // no file is read besides the plan and the natives manifest. Each classpath entry is stat-ed against
+    // its index entry and each native the manifest lists is checked (a few dozen calls), and asset objects
+    // found missing when the index was loaded send every version through prepare once, so they are fetched again.
+    LaunchPlan savedPlan(VersionInfo ver) {
+        if (ver.jsonSha1 == null) return null;
+        LaunchPlan p = LaunchPlan.read(planFile(ver));
+        if (p == null || !p.key.equals(planKey(ver)) || !p.javaPath.equals(findJavaForVersion(p.javaReq))
+            || new File(p.javaPath).lastModified() != p.javaMtime || !new File(p.natDir).isDirectory() || !new File(p.gameAssets).isDirectory()) return null;
+        for (String c : p.classpath) if (!files.intact(c)) return null;
+        NativesManifest natives = new NativesManifest(p.natDir);
+        for (String jar : natives.jars.keySet()) if (!natives.current(jar)) return null;
+        if (files.objectsDropped && !assetsRepaired.contains(ver.id)) return null;
+        return p;
+    }
+    
+    // versions/<id>/<id>.json, trusted while it matches the sha1 from manifest v2 (any intact copy when
+    // that is unknown) and downloaded only otherwise, so launching an installed version needs no network.
+    Object versionJson(VersionInfo ver) throws Exception {
+        String path = VERSIONS_DIR + ver.id + "/" + ver.id + ".json";
+        if (!verified(path, -1, ver.jsonSha1)) {
+            status("Downloading version info...");
+            new File(VERSIONS_DIR + ver.id).mkdirs();
+            if (!downloadQuiet(ver.jsonUrl, path, -1, ver.jsonSha1)) throw new IOException("Could not get version info for " + ver.id);
+        }
+        return new Json(Files.readAllBytes(Paths.get(path))).readValue();
+    }
+    
+    // Details of the last few versions prepared, keyed by id and sha1, so memory stays flat however
+    // many versions one session launches
+    VersionDetails details(VersionInfo ver) throws Exception {
+        String key = ver.id + "@" + ver.jsonSha1;
+        VersionDetails d = versionDetails.get(key);
+        if (d == null) versionDetails.put(key, d = new VersionDetails(versionJson(ver)));
+        return d;
+    }
+    
     void runGame(VersionInfo ver, String user) {
         isRunning = true; cancelled = false;
         SwingUtilities.invokeLater(() -> {
@@ -834,189 +1631,58 @@ public class CTLauncherHDR extends JFrame {
             progressBar.setValue(0);
         });
         
+        LaunchProfile prof = profile = new LaunchProfile();
+        FileChannel gcGuard = null;
         try {
             log("═════════════════════════════════════════════════════");
             log("Launching Minecraft " + ver.id + " as " + user);
             log("═════════════════════════════════════════════════════");
             
-            status("Downloading version info...");
-            String json = http(ver.jsonUrl);
-            ver.mainClass = jstr(json, "mainClass");
-            ver.assetId = jstr(json, "assets");
-            
-            String javaReq = jstr(json, "majorVersion");
-            if (javaReq != null) try { ver.javaVersion = Integer.parseInt(javaReq); } catch (Exception e) {}
-            else ver.javaVersion = getRequiredJava(ver.id);
-            log("MC " + ver.id + " -> Java " + ver.javaVersion + " required");
-            
-            String javaPath = findJavaForVersion(ver.javaVersion);
-            int availableJava = detectJavaVersion(javaPath);
-            
-            if (availableJava < ver.javaVersion) {
-                log("ERROR: Java " + ver.javaVersion + " required!");
-                status("ERROR: Need Java " + ver.javaVersion + "!");
+            prof.phase("Launch plan");
+            if ((gcGuard = gcLock(MC_DIR, true)) == null) {
+                prof.outcome = "cache gc running";
+                status("The game folder is being cleaned up, try again in a moment");
                 return;
             }
-            log("Using Java: " + javaPath + " (version " + availableJava + ")");
-            
-            int ai = json.indexOf("\"assetIndex\"");
-            if (ai != -1) {
-                int s = json.indexOf("{", ai), e = brace(json, s);
-                if (e != -1) { String a = json.substring(s, e+1); ver.assetUrl = jstr(a, "url"); if (ver.assetId == null) ver.assetId = jstr(a, "id"); }
-            }
-            if (ver.assetId == null) ver.assetId = "legacy";
-            
-            int di = json.indexOf("\"downloads\"");
-            if (di != -1) {
-                int s = json.indexOf("{", di), e = brace(json, s);
-                if (e != -1) { String d = json.substring(s, e+1); int ci = d.indexOf("\"client\"");
-                    if (ci != -1) { int cs = d.indexOf("{", ci), ce = brace(d, cs); if (ce != -1) ver.clientUrl = jstr(d.substring(cs, ce+1), "url"); }}
-            }
-            
-            parseLibs(ver, json);
-            log("Main: " + ver.mainClass + " | Libs: " + ver.libraries.size());
-            progress(10);
-            if (cancelled) throw new InterruptedException();
-            
-            status("Downloading Minecraft...");
-            String jar = VERSIONS_DIR + ver.id + "/" + ver.id + ".jar";
-            new File(VERSIONS_DIR + ver.id).mkdirs();
-            File jf = new File(jar);
-            if (!jf.exists() || jf.length() < 1000000) {
-                if (ver.clientUrl == null) throw new Exception("No client URL!");
-                download(ver.clientUrl, jar, 10, 30);
-            }
-            log("Client JAR: " + jf.length() + " bytes");
-            progress(30);
-            if (cancelled) throw new InterruptedException();
-            
-            status("Downloading libraries...");
-            int total = ver.libraries.size(), done = 0, dl = 0;
-            for (LibInfo lib : ver.libraries) {
-                if (cancelled) throw new InterruptedException();
-                done++;
-                if (lib.artifactPath != null && lib.artifactUrl != null) {
-                    String p = LIBRARIES_DIR + lib.artifactPath;
-                    if (!new File(p).exists()) { new File(p).getParentFile().mkdirs(); downloadQuiet(lib.artifactUrl, p); dl++; }
-                }
-                if (lib.hasNatives && lib.nativeUrl != null && lib.nativePath != null) {
-                    String p = LIBRARIES_DIR + lib.nativePath;
-                    if (!new File(p).exists()) { new File(p).getParentFile().mkdirs(); downloadQuiet(lib.nativeUrl, p); dl++; }
-                }
-                progress(30 + 20 * done / total);
-            }
-            log("Downloaded " + dl + " libraries");
-            progress(50);
-            if (cancelled) throw new InterruptedException();
-            
-            status("Extracting natives...");
-            String natDir = NATIVES_DIR + ver.id + "/";
-            new File(natDir).mkdirs();
-            int nc = 0;
-            for (LibInfo lib : ver.libraries) {
-                String jp = lib.hasNatives && lib.nativePath != null ? LIBRARIES_DIR + lib.nativePath :
-                    (lib.name != null && lib.name.toLowerCase().contains("lwjgl") && lib.name.toLowerCase().contains("native") && lib.artifactPath != null) ? LIBRARIES_DIR + lib.artifactPath : null;
-                if (jp != null && new File(jp).exists()) nc += extractNat(jp, natDir);
-            }
-            log("Extracted " + nc + " native files");
-            progress(60);
-            if (cancelled) throw new InterruptedException();
-            
-            status("Downloading assets...");
-            String idx = ASSETS_DIR + "indexes/" + ver.assetId + ".json";
-            if (ver.assetUrl != null && !new File(idx).exists()) downloadQuiet(ver.assetUrl, idx);
-            
-            File idxFile = new File(idx);
-            if (idxFile.exists()) {
-                try {
-                    String assetJson = new String(Files.readAllBytes(idxFile.toPath()));
-                    int objIdx = assetJson.indexOf("\"objects\"");
-                    if (objIdx != -1) {
-                        int objStart = assetJson.indexOf("{", objIdx);
-                        int objEnd = brace(assetJson, objStart);
-                        if (objEnd != -1) {
-                            String objects = assetJson.substring(objStart, objEnd + 1);
-                            List<String> hashes = new ArrayList<>();
-                            int pos = 0;
-                            while (pos < objects.length()) {
-                                int hashIdx = objects.indexOf("\"hash\"", pos);
-                                if (hashIdx == -1) break;
-                                String hash = jstr(objects.substring(hashIdx - 1), "hash");
-                                if (hash != null && hash.length() == 40) hashes.add(hash);
-                                pos = hashIdx + 10;
-                            }
-                            log("Assets: " + hashes.size());
-                            int assetsDl = 0;
-                            for (int i = 0; i < hashes.size(); i++) {
-                                if (cancelled) throw new InterruptedException();
-                                String hash = hashes.get(i);
-                                String prefix = hash.substring(0, 2);
-                                String assetPath = ASSETS_DIR + "objects/" + prefix + "/" + hash;
-                                if (!new File(assetPath).exists()) {
-                                    new File(assetPath).getParentFile().mkdirs();
-                                    if (downloadQuiet("https://resources.download.minecraft.net/" + prefix + "/" + hash, assetPath)) assetsDl++;
-                                }
-                                if (i % 100 == 0) { progress(60 + 20 * i / Math.max(1, hashes.size())); status("Assets... " + i + "/" + hashes.size()); }
-                            }
-                            log("Downloaded " + assetsDl + " assets");
-                        }
-                    }
-                } catch (Exception e) { log("Asset error: " + e.getMessage()); }
+            files.load();
+            LaunchPlan plan = savedPlan(ver);
+            if (plan != null) log("Launch plan is current, skipping preparation (Java " + plan.javaVersion + ": " + plan.javaPath + ")");
+            else {
+                if ((plan = prepare(ver, prof)) == null) return;
+                if (prof.failed.get() == 0) assetsRepaired.add(ver.id);
+                if (prof.failed.get() == 0 && ver.jsonSha1 != null)
+                    try { plan.write(planFile(ver)); } catch (IOException e) { log("Could not save launch plan: " + e.getMessage()); }
             }
-            progress(80);
-            if (cancelled) throw new InterruptedException();
+            new File(VERSIONS_DIR + ver.id).setLastModified(System.currentTimeMillis());   // last launch, the cache GC's LRU order
             
+            prof.phase("Boosters");
             status("Applying boosters...");
             applyFPSBoosters(ver);
             progress(85);
             
+            prof.phase("Process start");
             status("Launching...");
             int ram = (Integer) ramSpinner.getValue();
             String uuid = genUUID(user);
             
-            StringBuilder cp = new StringBuilder();
-            for (LibInfo lib : ver.libraries)
-                if (lib.artifactPath != null && !lib.hasNatives) { String p = LIBRARIES_DIR + lib.artifactPath;
-                    if (new File(p).exists()) { if (cp.length() > 0) cp.append(File.pathSeparator); cp.append(p); }}
-            cp.append(File.pathSeparator).append(jar);
-            
             List<String> cmd = new ArrayList<>();
-            cmd.add(javaPath);
-            
-            if (isMacOS()) {
-                cmd.add("-XstartOnFirstThread");
-            }
-            
+            cmd.add(plan.javaPath);
             cmd.add("-Xms512M"); cmd.add("-Xmx" + ram + "M");
-            cmd.add("-XX:+UnlockExperimentalVMOptions"); cmd.add("-XX:+UseG1GC");
-            cmd.add("-XX:G1NewSizePercent=20"); cmd.add("-XX:G1ReservePercent=20");
-            cmd.add("-XX:MaxGCPauseMillis=50"); cmd.add("-XX:G1HeapRegionSize=32M");
-            cmd.add("-Djava.library.path=" + natDir);
-            cmd.add("-Dminecraft.launcher.brand=" + NAME);
-            cmd.add("-Dminecraft.launcher.version=" + VER);
-            if (isAppleSilicon()) cmd.add("-Dorg.lwjgl.system.allocator=system");
-            if (availableJava >= 21) cmd.add("--enable-native-access=ALL-UNNAMED");
-            cmd.add("-cp"); cmd.add(cp.toString());
-            cmd.add(ver.mainClass != null ? ver.mainClass : "net.minecraft.client.main.Main");
-            
-            cmd.add("--username"); cmd.add(user);
-            cmd.add("--version"); cmd.add(ver.id);
-            cmd.add("--gameDir"); cmd.add(MC_DIR);
-            cmd.add("--assetsDir"); cmd.add(ASSETS_DIR);
-            cmd.add("--assetIndex"); cmd.add(ver.assetId);
-            cmd.add("--uuid"); cmd.add(uuid);
-            cmd.add("--accessToken"); cmd.add("0");
-            cmd.add("--userType"); cmd.add("legacy");
-            cmd.add("--versionType"); cmd.add(NAME);
+            LaunchContext ctx = context(ver, plan, user, uuid);
+            for (Template t : plan.jvm()) cmd.add(t.expand(ctx));
+            cmd.add(plan.mainClass);
+            for (Template t : plan.game()) cmd.add(t.expand(ctx));
             
             progress(100);
-            log("Starting with Java " + availableJava + ", RAM: " + ram + "MB");
+            log("Starting with Java " + plan.javaVersion + ", RAM: " + ram + "MB");
             log("Boosters: " + getActiveBoostersString());
             
             ProcessBuilder pb = new ProcessBuilder(cmd);
             pb.directory(new File(MC_DIR));
             pb.redirectErrorStream(true);
             Process proc = pb.start();
+            prof.phase("JVM startup");
+            prof.detached = true;
             
             log("═════════════════════════════════════════════════════");
             log("Minecraft started! PID: " + proc.pid());
@@ -1024,19 +1690,151 @@ public class CTLauncherHDR extends JFrame {
             
             new Thread(() -> {
                 try (BufferedReader br = new BufferedReader(new InputStreamReader(proc.getInputStream()))) {
-                    String line; while ((line = br.readLine()) != null) log("MC> " + line);
+                    String line; while ((line = br.readLine()) != null) { report(prof, ver.id); log("MC> " + line); }
                 } catch (Exception ex) {}
+                report(prof, ver.id);
                 try { int c = proc.waitFor(); log("Exit: " + c); if (c != 0) status("Crashed (" + c + ")"); } catch (Exception ex) {}
             }).start();
             
-        } catch (InterruptedException ex) { status("Cancelled");
-        } catch (Exception ex) { status("Error: " + ex.getMessage()); log("ERROR: " + ex); ex.printStackTrace();
+        } catch (InterruptedException ex) { prof.outcome = "cancelled"; status("Cancelled");
+        } catch (Exception ex) { prof.outcome = "error: " + ex; status("Error: " + ex.getMessage()); log("ERROR: " + ex); ex.printStackTrace();
         } finally {
+            if (!prof.detached) report(prof, ver.id);
+            try { files.save(); } catch (IOException ex) { log("Could not save file index: " + ex.getMessage()); }
+            if (gcGuard != null) try { gcGuard.close(); } catch (IOException ex) {}
             isRunning = false;
             SwingUtilities.invokeLater(() -> { launchButton.setText("LAUNCH"); launchButton.setBackground(C_ACCENT); progressBar.setVisible(false); });
         }
     }
     
+    // Version JSON, client jar, libraries, natives and assets, downloading whatever is missing; null when
+    // no suitable Java is installed
+    LaunchPlan prepare(VersionInfo ver, LaunchProfile prof) throws Exception {
+        prof.phase("Version JSON");
+        status("Reading version info...");
+        VersionDetails d = details(ver);
+        int javaVersion = d.javaReq > 0 ? d.javaReq : getRequiredJava(ver.id);
+        log("MC " + ver.id + " -> Java " + javaVersion + " required");
+        
+        String javaPath = findJavaForVersion(javaVersion);
+        int availableJava = detectJavaVersion(javaPath);
+        
+        if (availableJava < javaVersion) {
+            log("ERROR: Java " + javaVersion + " required!");
+            status("ERROR: Need Java " + javaVersion + "!");
+            prof.outcome = "no java " + javaVersion;
+            return null;
+        }
+        log("Using Java: " + javaPath + " (version " + availableJava + ")");
+        
+        log("Main: " + d.mainClass + " | Libs: " + d.libraries.size());
+        progress(10);
+        if (cancelled) throw new InterruptedException();
+        
+        prof.phase("Client jar");
+        status("Downloading Minecraft...");
+        String jar = VERSIONS_DIR + ver.id + "/" + ver.id + ".jar";
+        new File(VERSIONS_DIR + ver.id).mkdirs();
+        File jf = new File(jar);
+        if (!verified(jar, d.clientSize, d.clientSha1) || d.clientSize < 0 && jf.length() < 1000000) {
+            if (d.clientUrl == null) throw new Exception("No client URL!");
+            download(d.clientUrl, jar, d.clientSize, d.clientSha1, 10, 30);
+        }
+        log("Client JAR: " + jf.length() + " bytes");
+        progress(30);
+        if (cancelled) throw new InterruptedException();
+        
+        prof.phase("Libraries");
+        status("Downloading libraries...");
+        String natDir = NATIVES_DIR + ver.id + "/";
+        new File(natDir).mkdirs();
+        AtomicInteger nc = new AtomicInteger();
+        NativesManifest natives = new NativesManifest(natDir);
+        ExecutorService natPool = Executors.newFixedThreadPool(NAT_THREADS, daemon("ct-natives"));
+        try {
+            List<DlJob> libJobs = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            for (LibInfo lib : d.libraries) {
+                String nj = nativeJar(lib);
+                DlJob[] files = {
+                    lib.artifactPath == null ? null : new DlJob(lib.artifactUrl, LIBRARIES_DIR + lib.artifactPath, lib.artifactSha1, lib.artifactSize),
+                    lib.hasNatives && lib.nativePath != null ? new DlJob(lib.nativeUrl, LIBRARIES_DIR + lib.nativePath, lib.nativeSha1, lib.nativeSize) : null };
+                for (DlJob f : files) {
+                    if (f == null || !seen.add(f.path)) continue;
+                    if (f.path.equals(nj)) f.then = () -> {
+                        String key = NativesManifest.key(f);
+                        if (!natives.current(key)) natPool.execute(() -> nc.addAndGet(extractNat(f.path, natDir, natives, key, prof)));
+                    };
+                    if (verified(f.path, f.size, f.sha1)) { if (f.then != null) f.then.run(); }
+                    else if (f.url != null) { new File(f.path).getParentFile().mkdirs(); libJobs.add(f); }
+                }
+            }
+            int dl = fetchAll(libJobs, "Libraries", 30, 55);
+            log("Downloaded " + dl + " libraries");
+            prof.phase("Natives");
+            status("Extracting natives...");
+            natPool.shutdown();
+            while (!natPool.awaitTermination(100, TimeUnit.MILLISECONDS)) if (cancelled) throw new InterruptedException();
+        } finally { natPool.shutdownNow(); }
+        try { natives.save(); } catch (IOException e) { log("Could not save natives manifest: " + e.getMessage()); }
+        log("Extracted " + nc + " native files");
+        progress(60);
+        if (cancelled) throw new InterruptedException();
+        
+        prof.phase("Asset index");
+        status("Downloading assets...");
+        File idxFile = new File(ASSETS_DIR + "indexes/" + d.assetId + ".json");
+        String gameAssets = ASSETS_DIR;
+        try {
+            JobQueue assets = assetJobs(idxFile, d.assetUrl, d.assetSize, d.assetSha1);
+            prof.phase("Assets");
+            if (assets != null) {
+                int assetsDl = fetchAll(assets, "Assets", 60, 80);
+                if (assets.failure != null) throw assets.failure;
+                log("Assets: " + assets.objects);
+                log("Downloaded " + assetsDl + " assets");
+                String legacy = legacyAssets(idxFile, d.assetId, d.assetSha1);
+                if (legacy != null) gameAssets = legacy;
+            }
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            // A cancelled stream ends early and fails to parse; that is the cancel, not an asset failure
+            if (cancelled) throw new InterruptedException();
+            // Counted, so runGame does not save a plan without the assets (or a pre-1.7 layout) in place
+            prof.failed.incrementAndGet();
+            log("Asset error: " + e.getMessage());
+        }
+        progress(80);
+        if (cancelled) throw new InterruptedException();
+        
+        LaunchPlan plan = new LaunchPlan();
+        plan.key = planKey(ver); plan.javaPath = javaPath; plan.javaMtime = new File(javaPath).lastModified();
+        plan.javaReq = javaVersion; plan.javaVersion = availableJava; plan.natDir = natDir;
+        plan.mainClass = d.mainClass != null ? d.mainClass : "net.minecraft.client.main.Main";
+        for (LibInfo lib : d.libraries)
+            if (lib.artifactPath != null && !lib.hasNatives) {
+                String p = LIBRARIES_DIR + lib.artifactPath;
+                if (new File(p).exists()) plan.classpath.add(p);
+                else { prof.failed.incrementAndGet(); log("Missing library: " + lib.artifactPath); }   // not saved without it
+            }
+        plan.classpath.add(jar);
+        
+        if (isMacOS() && !d.jvmArgs.contains("-XstartOnFirstThread")) {
+            plan.jvmArgs.add("-XstartOnFirstThread");
+        }
+        
+        plan.jvmArgs.add("-XX:+UnlockExperimentalVMOptions"); plan.jvmArgs.add("-XX:+UseG1GC");
+        plan.jvmArgs.add("-XX:G1NewSizePercent=20"); plan.jvmArgs.add("-XX:G1ReservePercent=20");
+        plan.jvmArgs.add("-XX:MaxGCPauseMillis=50"); plan.jvmArgs.add("-XX:G1HeapRegionSize=32M");
+        if (isAppleSilicon()) plan.jvmArgs.add("-Dorg.lwjgl.system.allocator=system");
+        if (availableJava >= 21) plan.jvmArgs.add("--enable-native-access=ALL-UNNAMED");
+        plan.jvmArgs.addAll(d.jvmArgs.isEmpty() ? CLASSIC_JVM_ARGS : d.jvmArgs);
+        plan.gameArgs.addAll(gameArgs(d));
+        plan.assetId = d.assetId; plan.gameAssets = gameAssets; plan.versionType = NAME;
+        return plan;
+    }
+    
     void applyFPSBoosters(VersionInfo ver) {
         try {
             File optionsFile = new File(MC_DIR + "options.txt");
@@ -1086,122 +1884,1595 @@ public class CTLauncherHDR extends JFrame {
         return active.isEmpty() ? "None" : String.join(", ", active);
     }
     
-    void parseLibs(VersionInfo ver, String json) {
-        int li = json.indexOf("\"libraries\""); if (li == -1) return;
-        int as = json.indexOf("[", li), ae = bracket(json, as); if (ae == -1) return;
-        String arr = json.substring(as, ae + 1);
-        String os = osName();
-        int pos = 0;
-        while (pos < arr.length()) {
-            int s = arr.indexOf("{", pos); if (s == -1) break;
-            int e = brace(arr, s); if (e == -1) break;
-            String o = arr.substring(s, e + 1);
-            if (o.contains("\"rules\"") && !checkRules(o, os)) { pos = e + 1; continue; }
+    static void parseLibs(List<LibInfo> out, Object json) {
+        String os = PLATFORM.os;
+        for (Object o : Json.arr(json, "libraries")) {
+            if (!Rules.compile(Json.get(o, "rules")).allows(PLATFORM)) continue;
             LibInfo lib = new LibInfo();
-            lib.name = jstr(o, "name");
-            int di = o.indexOf("\"downloads\"");
-            if (di != -1) {
-                int ds = o.indexOf("{", di), de = brace(o, ds);
-                if (de != -1) { String dl = o.substring(ds, de + 1);
-                    int ai = dl.indexOf("\"artifact\"");
-                    if (ai != -1) { int aas = dl.indexOf("{", ai), aae = brace(dl, aas);
-                        if (aae != -1) { String art = dl.substring(aas, aae + 1); lib.artifactPath = jstr(art, "path"); lib.artifactUrl = jstr(art, "url"); }}
-                    String natKey = "\"natives-" + os + "\"";
-                    int ni = dl.indexOf(natKey);
-                    if (ni != -1) { int ns = dl.indexOf("{", ni), ne = brace(dl, ns);
-                        if (ne != -1) { String nat = dl.substring(ns, ne + 1); lib.nativePath = jstr(nat, "path"); lib.nativeUrl = jstr(nat, "url"); lib.hasNatives = true; }}}
-            }
+            lib.name = Json.str(o, "name");
+            Map<?, ?> dl = Json.obj(o, "downloads"), art = Json.obj(dl, "artifact"), nat = Json.obj(Json.obj(dl, "classifiers"), "natives-" + os);
+            if (art != null) { lib.artifactPath = Json.str(art, "path"); lib.artifactUrl = Json.str(art, "url"); lib.artifactSha1 = Json.str(art, "sha1"); lib.artifactSize = Json.num(art, "size"); }
+            if (nat != null) { lib.nativePath = Json.str(nat, "path"); lib.nativeUrl = Json.str(nat, "url"); lib.nativeSha1 = Json.str(nat, "sha1"); lib.nativeSize = Json.num(nat, "size"); lib.hasNatives = true; }
             if (lib.artifactPath == null && lib.name != null) {
                 String[] p = lib.name.split(":");
                 if (p.length >= 3) { String path = p[0].replace('.', '/') + "/" + p[1] + "/" + p[2] + "/" + p[1] + "-" + p[2] + ".jar";
                     lib.artifactPath = path; lib.artifactUrl = "https://libraries.minecraft.net/" + path; }
             }
-            if (lib.artifactPath != null || lib.hasNatives) ver.libraries.add(lib);
-            pos = e + 1;
+            if (lib.artifactPath != null || lib.hasNatives) out.add(lib);
         }
     }
     
-    boolean checkRules(String o, String os) {
-        boolean allow = false; int pos = 0;
-        while (true) { int ri = o.indexOf("\"action\"", pos); if (ri == -1) break;
-            int rs = o.lastIndexOf("{", ri), re = brace(o, rs); if (re == -1) break;
-            String rule = o.substring(rs, re + 1); String action = jstr(rule, "action");
-            boolean matches = !rule.contains("\"os\"") || rule.contains("\"name\"") && rule.contains("\"" + os + "\"");
-            if ("allow".equals(action) && matches) allow = true;
-            if ("disallow".equals(action) && matches) allow = false;
-            pos = re + 1;
+    // ═══════════════════════════════════════════════════════════
+    // Rules: the "rules" arrays of libraries and arguments, compiled
+    // into predicates over the platform this process runs on. The last
+    // rule that matches decides; when none matches the entry is left
+    // out, and an entry without rules is always in.
+    // ═══════════════════════════════════════════════════════════
+    static final class Platform {
+        final String os, arch, version;
+        final Set<String> features;
+        Platform(String os, String arch, String version, Set<String> features) { this.os = os; this.arch = arch; this.version = version; this.features = features; }
+        
+        // Mojang's names: windows/osx/linux, and x86 (32-bit), x86_64 or arm64. No optional features
+        // (demo user, custom resolution, quick play) are enabled.
+        static Platform current() {
+            String n = System.getProperty("os.name", "").toLowerCase(), a = System.getProperty("os.arch", "").toLowerCase();
+            String os = n.contains("win") ? "windows" : n.contains("mac") ? "osx" : "linux";
+            String arch = a.equals("x86") || a.matches("i[3-6]86") ? "x86" : a.equals("amd64") || a.equals("x86_64") ? "x86_64" : a.equals("aarch64") ? "arm64" : a;
+            return new Platform(os, arch, System.getProperty("os.version", ""), Set.of());
         }
-        return allow || !o.contains("\"action\"");
     }
     
-    String osName() { String os = System.getProperty("os.name").toLowerCase(); if (os.contains("win")) return "windows"; if (os.contains("mac")) return "osx"; return "linux"; }
+    static final Platform PLATFORM = Platform.current();
     
-    int extractNat(String jar, String dir) {
-        int n = 0;
-        try (ZipInputStream z = new ZipInputStream(new FileInputStream(jar))) {
-            ZipEntry e; while ((e = z.getNextEntry()) != null) { if (e.isDirectory() || e.getName().startsWith("META-INF")) continue;
-                String name = e.getName(); if (name.endsWith(".dll") || name.endsWith(".so") || name.endsWith(".dylib") || name.endsWith(".jnilib")) {
-                    File f = new File(dir + new File(name).getName()); if (!f.exists()) { Files.copy(z, f.toPath()); n++; }}}
-        } catch (Exception ex) {}
-        return n;
+    static final class Rule {
+        final boolean allow;
+        final String os, arch;
+        final Pattern version;
+        final Map<String, Boolean> features = new HashMap<>();
+        
+        Rule(Object r) {
+            allow = "allow".equals(Json.str(r, "action"));
+            Map<?, ?> o = Json.obj(r, "os");
+            os = Json.str(o, "name"); arch = Json.str(o, "arch");
+            Pattern v = null;
+            try { if (Json.str(o, "version") != null) v = Pattern.compile(Json.str(o, "version")); } catch (RuntimeException bad) { v = Pattern.compile("(?!)"); }
+            version = v;
+            Map<?, ?> f = Json.obj(r, "features");
+            if (f != null) for (Map.Entry<?, ?> e : f.entrySet()) features.put(String.valueOf(e.getKey()), Boolean.TRUE.equals(e.getValue()));
+        }
+        
+        boolean matches(Platform p) {
+            if (os != null && !os.equals(p.os) || arch != null && !arch.equals(p.arch)) return false;
+            if (version != null && !version.matcher(p.version).find()) return false;
+            for (Map.Entry<String, Boolean> f : features.entrySet()) if (p.features.contains(f.getKey()) != f.getValue()) return false;
+            return true;
+        }
     }
     
-    String genUUID(String u) {
-        try { MessageDigest md = MessageDigest.getInstance("MD5"); byte[] h = md.digest(("OfflinePlayer:" + u).getBytes());
-            h[6] = (byte) ((h[6] & 0x0f) | 0x30); h[8] = (byte) ((h[8] & 0x3f) | 0x80);
-            StringBuilder sb = new StringBuilder(); for (byte b : h) sb.append(String.format("%02x", b));
-            return sb.insert(8, '-').insert(13, '-').insert(18, '-').insert(23, '-').toString();
-        } catch (Exception e) { return UUID.randomUUID().toString(); }
+    static final class Rules {
+        final List<Rule> list = new ArrayList<>();
+        
+        // rules: the JSON array, or null for "no rules". Entries without an action are ignored.
+        static Rules compile(Object rules) {
+            Rules c = new Rules();
+            if (rules instanceof List) for (Object r : (List<?>) rules) if (Json.str(r, "action") != null) c.list.add(new Rule(r));
+            return c;
+        }
+        
+        boolean allows(Platform p) {
+            boolean ok = list.isEmpty();
+            for (Rule r : list) if (r.matches(p)) ok = r.allow;
+            return ok;
+        }
     }
     
-    String http(String url) throws Exception {
-        HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
-        c.setRequestProperty("User-Agent", NAME + "/" + VER); c.setConnectTimeout(15000); c.setReadTimeout(30000);
-        try (InputStream i = c.getInputStream()) { ByteArrayOutputStream b = new ByteArrayOutputStream();
-            byte[] buf = new byte[8192]; int n; while ((n = i.read(buf)) != -1) b.write(buf, 0, n); return b.toString("UTF-8"); }
-    }
-    
-    void download(String url, String dest, int p1, int p2) throws Exception {
-        HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection(); c.setRequestProperty("User-Agent", NAME + "/" + VER);
-        long total = c.getContentLengthLong();
-        try (InputStream i = c.getInputStream(); FileOutputStream o = new FileOutputStream(dest)) {
-            byte[] b = new byte[8192]; int n; long done = 0;
-            while ((n = i.read(b)) != -1) { o.write(b, 0, n); done += n; if (total > 0) progress(p1 + (int)((p2 - p1) * done / total)); }}
-    }
-    
-    boolean downloadQuiet(String url, String dest) {
-        for (int retry = 0; retry < 3; retry++) {
-            try { HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
-                c.setRequestProperty("User-Agent", "Mozilla/5.0 " + NAME + "/" + VER);
-                c.setConnectTimeout(30000); c.setReadTimeout(120000); c.setInstanceFollowRedirects(true);
-                int code = c.getResponseCode(); if (code == 301 || code == 302 || code == 307 || code == 308) { url = c.getHeaderField("Location"); continue; }
-                if (code != 200) throw new Exception("HTTP " + code);
-                try (InputStream i = c.getInputStream(); FileOutputStream o = new FileOutputStream(dest)) {
-                    byte[] b = new byte[16384]; int n; while ((n = i.read(b)) != -1) o.write(b, 0, n); }
-                return true;
-            } catch (Exception ex) { new File(dest).delete(); if (retry == 2) return false; try { Thread.sleep(500 * (retry + 1)); } catch (Exception e) {} }
-        }
-        return false;
-    }
-    
-    String jstr(String j, String k) {
-        int i = j.indexOf("\"" + k + "\""); if (i == -1) return null;
-        int c = j.indexOf(":", i); if (c == -1) return null;
-        int s = -1; for (int x = c + 1; x < j.length(); x++) { char ch = j.charAt(x); if (ch == '"') { s = x + 1; break; } else if (!Character.isWhitespace(ch)) break; }
-        if (s == -1) return null; int e = s; while (e < j.length() && !(j.charAt(e) == '"' && j.charAt(e-1) != '\\')) e++; return j.substring(s, e);
-    }
-    
-    int brace(String s, int i) {
-        if (i < 0 || i >= s.length()) return -1; int d = 0; boolean q = false;
-        for (int x = i; x < s.length(); x++) { char c = s.charAt(x);
-            if (c == '"' && (x == 0 || s.charAt(x-1) != '\\')) q = !q;
-            if (!q) { if (c == '{') d++; else if (c == '}') { d--; if (d == 0) return x; }}} return -1;
-    }
-    
-    int bracket(String s, int i) {
-        if (i < 0 || i >= s.length()) return -1; int d = 0; boolean q = false;
-        for (int x = i; x < s.length(); x++) { char c = s.charAt(x);
-            if (c == '"' && (x == 0 || s.charAt(x-1) != '\\')) q = !q;
-            if (!q) { if (c == '[') d++; else if (c == ']') { d--; if (d == 0) return x; }}} return -1;
+    // Modern arguments: plain strings as they are, {"rules", "value"} objects only where their rules
+    // allow, with value a string or a list of them
+    static void args(List<?> arr, List<String> out) {
+        for (Object a : arr) {
+            if (a instanceof String) { out.add((String) a); continue; }
+            if (!Rules.compile(Json.get(a, "rules")).allows(PLATFORM)) continue;
+            Object v = Json.get(a, "value");
+            if (v instanceof String) out.add((String) v);
+            else if (v instanceof List) for (Object s : (List<?>) v) if (s instanceof String) out.add((String) s);
+        }
+    }
+    
+    // One {"hash": ..., "size": ...} entry read into d; its size, or ABSENT when the hash is not a sha1
+    static long assetObject(Json r, byte[] d) {
+        boolean ok = false; long size = -1;
+        r.beginObject();
+        while (r.hasNext()) switch (r.nextName()) {
+            case "hash": ok = r.nextDigest(d); break;
+            case "size": size = r.nextLong(); break;
+            default: r.skipValue();
+        }
+        r.endObject();
+        return ok ? size : DigestSet.ABSENT;
+    }
+    
+    // An asset index read while it arrives: feed() takes each chunk and hands the sink every object
+    // entry completed so far. Whatever an entry cut off at the end of a chunk has consumed is undone
+    // and the entry parsed again from its start with the next chunk, so boundaries may fall anywhere.
+    static final class IndexStream {
+        interface Sink { void object(byte[] digest, int off, long size); }
+        
+        final Sink sink;
+        final byte[] d = new byte[20];
+        byte[] buf = new byte[1 << 16];
+        int len, pos;
+        int state; // 0 top level, 1 inside "objects", 2 after the closing brace
+        boolean started;
+        
+        IndexStream(Sink sink) { this.sink = sink; }
+        
+        void feed(byte[] b, int off, int n) {
+            if (pos > 0) { System.arraycopy(buf, pos, buf, 0, len - pos); len -= pos; pos = 0; }
+            if (len + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+            System.arraycopy(b, off, buf, len, n);
+            len += n;
+            parse(false);
+        }
+        
+        // End of stream: anything still unparsed is an error now rather than a partial entry
+        void finish() {
+            parse(true);
+            if (state != 2) throw new IllegalArgumentException("Asset index ends early");
+        }
+        
+        void parse(boolean last) {
+            Json r = new Json(ByteBuffer.wrap(buf, 0, len));
+            try {
+                while (state != 2) {
+                    r.i = pos;
+                    if (!started) { r.beginObject(); started = true; }
+                    else if (state == 0) {
+                        if (!r.hasNext()) { r.endObject(); state = 2; }
+                        else if (r.nextName().equals("objects")) { r.beginObject(); state = 1; }
+                        else r.skipValue();
+                    } else if (!r.hasNext()) { r.endObject(); state = 0; }
+                    else {
+                        r.skipName();
+                        long size = assetObject(r, d);
+                        if (size != DigestSet.ABSENT) sink.object(d, 0, size);
+                    }
+                    pos = r.i;
+                }
+            } catch (IllegalArgumentException partial) {
+                if (last) throw partial;
+            }
+        }
+    }
+    
+    // Every object of an asset index as packed digest + size, de-duplicated (many names share one hash).
+    // The file is memory-mapped and pulled through Json once; no String is made per object.
+    static DigestSet readAssetIndex(File idx) throws IOException {
+        DigestSet objects = new DigestSet();
+        byte[] d = new byte[20];
+        try (FileChannel ch = FileChannel.open(idx.toPath())) {
+            Json r = new Json(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+            r.beginObject();
+            while (r.hasNext()) {
+                if (!r.nextName().equals("objects")) { r.skipValue(); continue; }
+                r.beginObject();
+                while (r.hasNext()) {
+                    r.skipName();
+                    long size = assetObject(r, d);
+                    if (size != DigestSet.ABSENT) objects.put(d, 0, size);
+                }
+                r.endObject();
+            }
+        }
+        return objects;
+    }
+    
+    // Objects not already verified, as download jobs. The verified-file index answers most of them from
+    // its digest set; path and URL strings are only formatted (into reused builders) for the rest.
+    List<DlJob> missingAssets(DigestSet objects) {
+        List<DlJob> jobs = new ArrayList<>();
+        IntFunction<DlJob> job = assetJob(objects);
+        for (int k = 0; k < objects.count; k++) { DlJob j = job.apply(k); if (j != null) jobs.add(j); }
+        return jobs;
+    }
+    
+    // Entry k of objects as a download job, or null when it is already verified
+    IntFunction<DlJob> assetJob(DigestSet objects) {
+        StringBuilder path = new StringBuilder(ASSETS_DIR).append("objects/"), url = new StringBuilder("https://resources.download.minecraft.net/");
+        int pathBase = path.length(), urlBase = url.length();
+        char[] hex = new char[40];
+        return k -> {
+            long size = objects.vals[k];
+            if (files.objects.get(objects.keys, k * 20) == size) { profile.checked.incrementAndGet(); return null; }
+            objects.hex(k, hex);
+            path.setLength(pathBase); path.append(hex, 0, 2).append('/').append(hex);
+            String p = path.toString(), hash = new String(hex);
+            if (verified(p, size, hash)) return null;
+            new File(p).getParentFile().mkdirs();
+            url.setLength(urlBase); url.append(hex, 0, 2).append('/').append(hex);
+            return new DlJob(url.toString(), p, hash, size);
+        };
+    }
+    
+    // The objects of the index at idx still to fetch. An index that is current on disk (or from a peer) is
+    // read in one pass and its jobs are all queued at once. Otherwise it is parsed while it downloads and
+    // each missing object is queued as soon as its entry is complete, so object downloads start within a
+    // round trip of the index request instead of after it. Null when there is no index at all.
+    JobQueue assetJobs(File idx, String url, long size, String sha1) throws IOException {
+        String p = idx.getPath();
+        if (url != null && !verified(p, size, sha1) && (peers.isEmpty() || !fromPeers(p, size, sha1))) return streamAssetIndex(url, idx, size, sha1);
+        if (!idx.exists()) return null;
+        DigestSet objects = readAssetIndex(idx);
+        JobQueue q = JobQueue.of(missingAssets(objects));
+        q.objects = objects.count;
+        return q;
+    }
+    
+    // Producer side of assetJobs on its own thread. If the stream breaks off or the index fails its check,
+    // the index is fetched whole the usual way and whatever it lists beyond the objects already queued is added.
+    JobQueue streamAssetIndex(String url, File idx, long size, String sha1) {
+        JobQueue q = new JobQueue();
+        DigestSet seen = new DigestSet();
+        IntFunction<DlJob> job = assetJob(seen);
+        IndexStream.Sink sink = (d, off, n) -> {
+            if (!seen.put(d, off, n)) return;
+            DlJob j = job.apply(seen.count - 1);
+            if (j != null) q.offer(j);
+        };
+        daemon("ct-asset-index").newThread(() -> {
+            try {
+                try {
+                    fetchIndex(url, idx, size, sha1, sink);
+                } catch (Exception e) {
+                    if (cancelled) throw e;
+                    log("Asset index stream failed (" + e.getMessage() + "), fetching it whole");
+                    if (!downloadQuiet(url, idx.getPath(), size, sha1)) throw new IOException("Could not get asset index " + idx.getName());
+                    DigestSet all = readAssetIndex(idx);
+                    for (int k = 0; k < all.count; k++) sink.object(all.keys, k * 20, all.vals[k]);
+                }
+                q.objects = seen.count;
+                q.finish(null);
+            } catch (Exception e) { q.finish(e); }
+        }).start();
+        return q;
+    }
+    
+    // Downloads the index into idx.part, handing every chunk to a fresh IndexStream (a retried request
+    // starts over; the sink drops objects it has already seen) and renaming it into place once it checks out.
+    // When another launch was already fetching it, the sink is fed from the copy that launch left on disk.
+    void fetchIndex(String url, File idx, long size, String sha1, IndexStream.Sink sink) throws Exception {
+        boolean[] streamed = {false};
+        singleFlight(idx.getPath(), size, sha1, () -> { streamed[0] = true; streamIndex(url, idx, size, sha1, sink); return true; });
+        if (streamed[0]) return;
+        DigestSet all = readAssetIndex(idx);
+        for (int k = 0; k < all.count; k++) sink.object(all.keys, k * 20, all.vals[k]);
+    }
+    
+    void streamIndex(String url, File idx, long size, String sha1, IndexStream.Sink sink) throws Exception {
+        idx.getParentFile().mkdirs();
+        File part = new File(idx.getPath() + ".part");
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        fetch(url, (r, in) -> {
+            IndexStream s = new IndexStream(sink);
+            md.reset();
+            byte[] chunk = new byte[1 << 15];
+            // Not preallocated: the fallback download resumes this same .part from its length
+            try (FileChannel ch = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long at = 0;
+                for (int n; (n = in.read(chunk)) > 0; ) {
+                    if (cancelled) throw new InterruptedException();
+                    md.update(chunk, 0, n);
+                    for (ByteBuffer w = ByteBuffer.wrap(chunk, 0, n); w.hasRemaining(); ) at += ch.write(w, at);
+                    s.feed(chunk, 0, n);
+                }
+                ch.truncate(at);
+            }
+            s.finish();
+            return null;
+        });
+        String got = checked(part, size, sha1, md);
+        if (got == null) { part.delete(); throw new IOException("checksum mismatch"); }
+        moveIntoPlace(part.toPath(), idx.toPath());
+        files.put(idx.getPath(), got);
+        profile.fetched.incrementAndGet();
+    }
+    
+    // Pre-1.7 indexes also want every object under its name: "virtual" ones in assets/virtual/<id>/,
+    // "map_to_resources" ones in .minecraft/resources/. Those trees are hard links into assets/objects
+    // (copies where links fail), so they take no extra disk. A .done-<id> marker holding the index sha1
+    // makes a relaunch skip the walk; it is only written when every object was in place. Returns the
+    // directory for ${game_assets}, or null for a modern index.
+    String legacyAssets(File idx, String assetId, String sha1) throws IOException {
+        if (!idx.isFile()) return null;
+        try (FileChannel ch = FileChannel.open(idx.toPath())) {
+            Json r = new Json(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+            boolean virtual = false, resources = false;
+            int objectsAt = -1;
+            r.beginObject();
+            while (r.hasNext()) switch (r.nextName()) {
+                case "virtual": virtual = r.nextBoolean(); break;
+                case "map_to_resources": resources = r.nextBoolean(); break;
+                case "objects": objectsAt = r.peekAt(); r.skipValue(); break;
+                default: r.skipValue();
+            }
+            if (!virtual && !resources || objectsAt < 0) return null;
+            Path root = Paths.get(virtual ? ASSETS_DIR + "virtual/" + assetId : MC_DIR + "resources").toAbsolutePath().normalize();
+            Path marker = root.resolve(".done-" + assetId);
+            String stamp = sha1 != null ? sha1 : idx.length() + "-" + idx.lastModified();
+            if (Files.isRegularFile(marker) && Files.readString(marker).trim().equals(stamp)) return root + File.separator;
+            
+            byte[] d = new byte[20];
+            char[] hex = new char[40];
+            int linked = 0, missing = 0;
+            r.i = objectsAt;
+            r.beginObject();
+            while (r.hasNext()) {
+                String name = r.nextName();
+                long size = assetObject(r, d);
+                Path to = root.resolve(name).normalize();
+                if (size == DigestSet.ABSENT || !to.startsWith(root)) continue;
+                for (int k = 0; k < 20; k++) { hex[2 * k] = Character.forDigit((d[k] >> 4) & 15, 16); hex[2 * k + 1] = Character.forDigit(d[k] & 15, 16); }
+                File obj = new File(ASSETS_DIR + "objects/" + hex[0] + hex[1] + "/" + new String(hex));
+                if (!obj.isFile()) { missing++; continue; }
+                if (Files.isRegularFile(to) && Files.size(to) == obj.length()) continue;
+                Files.createDirectories(to.getParent());
+                if (!Files.exists(to, LinkOption.NOFOLLOW_LINKS)) { linked += linkFile(obj, to.toFile()); continue; }
+                // A stale or truncated copy: linked beside it and renamed over it, since a link cannot replace it
+                Path tmp = to.resolveSibling(to.getFileName() + "." + System.nanoTime() + ".tmp");
+                try {
+                    if (linkFile(obj, tmp.toFile()) == 1) { moveIntoPlace(tmp, to); linked++; }
+                    else missing++;
+                } finally { Files.deleteIfExists(tmp); }
+            }
+            log("Legacy assets: " + linked + " linked into " + root + (missing > 0 ? ", " + missing + " objects missing" : ""));
+            if (missing == 0) Files.write(marker, stamp.getBytes(StandardCharsets.UTF_8));
+            return root + File.separator;
+        }
+    }
+    
+    // The jar natives are extracted from: the classifier jar, or an lwjgl "natives" artifact on newer versions
+    String nativeJar(LibInfo lib) {
+        if (lib.hasNatives && lib.nativePath != null) return LIBRARIES_DIR + lib.nativePath;
+        String n = lib.name != null ? lib.name.toLowerCase() : "";
+        return n.contains("lwjgl") && n.contains("native") && lib.artifactPath != null ? LIBRARIES_DIR + lib.artifactPath : null;
+    }
+    
+    // Natives are kept once per jar in NATIVES_DIR/.store/<key>/ and each version's directory gets hard
+    // links to them (copies where the file system has none), so versions on the same LWJGL build share
+    // its files on disk and only the first of them extracts anything. What a jar gave is recorded in the
+    // version's manifest once all of it is in place. A failure is counted, so no plan is saved without them.
+    int extractNat(String jar, String dir, NativesManifest nm, String key, LaunchProfile prof) {
+        int n = 0;
+        try {
+            File store = new File(NATIVES_DIR + ".store/" + key);
+            List<String> names = storedNatives(jar, store);
+            for (String name : names) {
+                File f = new File(dir + name);
+                if (!f.exists()) n += linkFile(new File(store, name), f);
+            }
+            nm.record(key, names);
+        } catch (Exception ex) {
+            prof.failed.incrementAndGet();
+            log("Could not extract natives from " + new File(jar).getName() + ": " + ex.getMessage());
+        }
+        return n;
+    }
+    
+    // The native files of jar in its store entry, extracting them first when there is no complete entry.
+    // Only the .so/.dll/.dylib/.jnilib entries are inflated, found through the jar's central directory.
+    // An entry is built in a temp directory and renamed in with its .files list, so it is whole or absent;
+    // one found with files missing (a sweep cut short, a user) is set aside and built again.
+    List<String> storedNatives(String jar, File store) throws IOException {
+        File list = new File(store, ".files");
+        if (list.isFile()) {
+            List<String> names = Files.readAllLines(list.toPath(), StandardCharsets.UTF_8);
+            boolean whole = true;
+            for (String n : names) whole &= new File(store, n).isFile();
+            if (whole) return names;
+            File stale = new File(store.getParentFile(), store.getName() + ".stale-" + System.nanoTime());
+            if (store.renameTo(stale)) { File[] left = stale.listFiles(); if (left != null) for (File x : left) x.delete(); stale.delete(); }
+        }
+        store.getParentFile().mkdirs();
+        Path tmp = Files.createTempDirectory(store.getParentFile().toPath(), store.getName() + ".");
+        try {
+            List<String> names = new ArrayList<>();
+            try (ZipFile z = new ZipFile(jar)) {
+                for (Enumeration<? extends ZipEntry> en = z.entries(); en.hasMoreElements(); ) {
+                    ZipEntry e = en.nextElement();
+                    String name = e.getName(), base = new File(name).getName();
+                    if (e.isDirectory() || name.startsWith("META-INF") || !isNativeLib(name) || names.contains(base)) continue;
+                    names.add(base);
+                    try (InputStream in = z.getInputStream(e)) { writeNative(in, e.getSize(), tmp.resolve(base).toFile()); }
+                }
+            }
+            Files.write(tmp.resolve(".files"), names, StandardCharsets.UTF_8);
+            // Losing the race to another launcher that stored the same jar is fine: the content is the same
+            try { Files.move(tmp, store.toPath(), StandardCopyOption.ATOMIC_MOVE); }
+            catch (IOException raced) { if (!list.isFile()) throw raced; }
+            return names;
+        } finally {
+            File[] left = tmp.toFile().listFiles();
+            if (left != null) { for (File x : left) x.delete(); tmp.toFile().delete(); }
+        }
+    }
+    
+    // f as a hard link to the stored file (a native or an asset object); where links are not supported
+    // (or cross devices) a copy, written beside f and renamed in
+    int linkFile(File stored, File f) throws IOException {
+        try {
+            Files.createLink(f.toPath(), stored.toPath());
+            return 1;
+        } catch (FileAlreadyExistsException e) {
+            return 0;
+        } catch (UnsupportedOperationException | IOException noLinks) {
+            try (InputStream in = new FileInputStream(stored)) { return writeNative(in, stored.length(), f); }
+        }
+    }
+    
+    static boolean isNativeLib(String name) {
+        return name.endsWith(".dll") || name.endsWith(".so") || name.endsWith(".dylib") || name.endsWith(".jnilib");
+    }
+    
+    // natives/<id>/.extracted: one line per native jar unpacked into that directory, its sha1 (size and
+    // mtime when none is published) followed by the files it gave, tab separated. A jar whose line is
+    // there and whose files all still are is not opened again, so a warm launch extracts nothing.
+    static final class NativesManifest {
+        final File file;
+        final Map<String, List<String>> jars = new ConcurrentHashMap<>();
+        volatile boolean dirty;
+        
+        NativesManifest(String dir) {
+            file = new File(dir, ".extracted");
+            try {
+                for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                    String[] p = line.split("\t");
+                    if (p.length > 0 && !p[0].isEmpty()) jars.put(p[0], Arrays.asList(p).subList(1, p.length));
+                }
+            } catch (IOException | UncheckedIOException missing) {}
+        }
+        
+        static String key(DlJob jar) {
+            File f = new File(jar.path);
+            return jar.sha1 != null ? jar.sha1 : f.length() + "-" + f.lastModified();
+        }
+        
+        boolean current(String key) {
+            List<String> names = jars.get(key);
+            if (names == null) return false;
+            for (String n : names) if (!new File(file.getParentFile(), n).isFile()) return false;
+            return true;
+        }
+        
+        void record(String key, List<String> names) { jars.put(key, names); dirty = true; }
+        
+        void save() throws IOException {
+            if (!dirty) return;
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, List<String>> e : jars.entrySet()) {
+                sb.append(e.getKey());
+                for (String n : e.getValue()) sb.append('\t').append(n);
+                sb.append('\n');
+            }
+            Path tmp = Files.createTempFile(file.getParentFile().toPath(), ".extracted", ".tmp");
+            Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+            moveIntoPlace(tmp, file.toPath());
+            dirty = false;
+        }
+    }
+    
+    // Natives are written to a temp file beside their final name and renamed in, so a crash can never
+    // leave the game a truncated .so/.dll to load
+    int writeNative(InputStream z, long size, File f) throws IOException {
+        Path tmp = Files.createTempFile(f.getParentFile().toPath(), f.getName(), ".tmp");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                reserve(ch, size);
+                ch.truncate(drain(Channels.newChannel(z), ch, 0));
+            }
+            moveIntoPlace(tmp, f.toPath());
+            return 1;
+        } catch (IOException ex) { Files.deleteIfExists(tmp); throw ex; }
+    }
+    
+    // cache/gc.lock: launches hold it shared from preparation until the game is started, the cache GC
+    // exclusively while it runs, so a --gc from another process never deletes files a launch is about to
+    // use or has just indexed. Returns the channel holding the lock, or null when the other side has it.
+    static FileChannel gcLock(String root, boolean shared) throws IOException {
+        File f = new File(root + "cache/gc.lock");
+        f.getParentFile().mkdirs();
+        FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (ch.tryLock(0, Long.MAX_VALUE, shared) != null) return ch;
+        } catch (OverlappingFileLockException heldHere) {}
+        ch.close();
+        return null;
+    }
+    
+    // ═══════════════════════════════════════════════════════════
+    // Cache GC: the game directory only ever grows, so what no kept
+    // version can reach is found and reported or deleted. Kept means
+    // installed (versions/<id>/<id>.json is there) and not evicted to
+    // bring the caches under the size budget, least recently launched
+    // first. Marking and the walks of libraries/, assets/ and natives/
+    // run in parallel; nothing is deleted by scan() itself.
+    // ═══════════════════════════════════════════════════════════
+    static final class CacheGC {
+        static final int THREADS = 4, VERSION = 0, LIBRARY = 1, OBJECT = 2, INDEX = 3, VIRTUAL = 4, NATIVES = 5, STORE = 6;
+        static final String[] KINDS = {"versions", "libraries", "asset objects", "asset indexes", "virtual assets", "natives", "natives store"};
+        static final long GRACE_MS = 3_600_000;   // younger files may be a download or extraction still in progress
+        
+        // One file under a managed tree. owner is what keeps it alive: the version id, library path, object
+        // name, asset index id or natives store key. key identifies the file itself, so hard links count once.
+        static final class Found {
+            final File file; final Object key; final long size, mtime; final int kind; final String owner;
+            Found(File file, Object key, long size, long mtime, int kind, String owner) {
+                this.file = file; this.key = key; this.size = size; this.mtime = mtime; this.kind = kind; this.owner = owner;
+            }
+        }
+        
+        // What one installed version reaches
+        static final class Marks {
+            final String id, parent, assetId;
+            final long used;
+            final Set<String> libs = new HashSet<>(), storeKeys;
+            final DigestSet objects;
+            Marks(String id, String parent, String assetId, long used, DigestSet objects, Set<String> storeKeys) {
+                this.id = id; this.parent = parent; this.assetId = assetId; this.used = used; this.objects = objects; this.storeKeys = storeKeys;
+            }
+        }
+        
+        static final class Result {
+            final List<Found> garbage = new ArrayList<>();
+            final List<String> evicted = new ArrayList<>();
+            final long[] count = new long[KINDS.length], bytes = new long[KINDS.length];
+            long freed, retained;
+            
+            String describe() {
+                StringBuilder sb = new StringBuilder(String.format(Locale.ROOT, "%d unreferenced files, %.1f MB (%.1f MB kept)", garbage.size(), freed / 1048576.0, retained / 1048576.0));
+                for (int k = 0; k < KINDS.length; k++)
+                    if (count[k] > 0) sb.append(String.format(Locale.ROOT, "\n  %s: %d files, %.1f MB", KINDS[k], count[k], bytes[k] / 1048576.0));
+                if (!evicted.isEmpty()) sb.append("\n  evicted over budget: ").append(String.join(", ", evicted));
+                return sb.toString();
+            }
+        }
+        
+        final String root;
+        final Path rootPath;
+        final FileIndex files;
+        final Consumer<String> log;
+        
+        CacheGC(String root, FileIndex files, Consumer<String> log) {
+            this.root = root; this.rootPath = Paths.get(root).toAbsolutePath(); this.files = files; this.log = log;
+        }
+        
+        // Finds the garbage for a budget in bytes (0 for none) without touching anything. Aborts when an
+        // installed version cannot be read, since then it is unknown what that version still needs.
+        Result scan(long budget) throws Exception {
+            File[] dirs = new File(root + "versions").listFiles(v -> new File(v, v.getName() + ".json").isFile());
+            Set<String> installed = new HashSet<>();
+            ExecutorService pool = Executors.newFixedThreadPool(THREADS, daemon("ct-gc"));
+            try {
+                List<Future<Marks>> marking = new ArrayList<>();
+                for (File v : dirs != null ? dirs : new File[0]) { installed.add(v.getName()); marking.add(pool.submit(() -> mark(v.getName()))); }
+                List<Future<List<Found>>> walks = new ArrayList<>();
+                for (File f : children("versions")) walks.add(pool.submit(() -> walk(f, VERSION, f.getName())));
+                for (File f : children("libraries")) walks.add(pool.submit(() -> walk(f, LIBRARY, null)));
+                for (File f : children("assets/objects")) walks.add(pool.submit(() -> walk(f, OBJECT, null)));
+                walks.add(pool.submit(() -> walk(new File(root + "assets/indexes"), INDEX, null)));
+                for (File f : children("assets/virtual")) walks.add(pool.submit(() -> walk(f, VIRTUAL, f.getName())));
+                for (File f : children("natives")) if (!f.getName().equals(".store")) walks.add(pool.submit(() -> walk(f, NATIVES, f.getName())));
+                for (File f : children("natives/.store")) walks.add(pool.submit(() -> walk(f, STORE, f.getName())));
+                
+                List<Marks> kept = new ArrayList<>();
+                for (Future<Marks> m : marking) {
+                    try { kept.add(m.get()); }
+                    catch (ExecutionException e) { throw new IOException(e.getCause().getMessage(), e.getCause()); }
+                }
+                List<Found> found = new ArrayList<>();
+                for (Future<List<Found>> w : walks) found.addAll(w.get());
+                kept.sort(Comparator.comparingLong(m -> -m.used));
+                
+                Result r = new Result();
+                while (true) {
+                    r = sweep(found, kept, installed, System.currentTimeMillis() - GRACE_MS, r.evicted);
+                    if (budget <= 0 || r.retained <= budget) break;
+                    Marks lru = null;
+                    for (int i = kept.size() - 1; i > 0 && lru == null; i--) if (!isParent(kept.get(i), kept)) lru = kept.get(i);
+                    if (lru == null) break;
+                    kept.remove(lru);
+                    r.evicted.add(lru.id);
+                }
+                log.accept("Cache GC: " + r.describe());
+                return r;
+            } finally { pool.shutdownNow(); }
+        }
+        
+        // Deletes what scan found, drops it from the verified-file index and removes the directories it
+        // leaves empty. Returns the number of files deleted.
+        int delete(Result r) throws Exception {
+            ExecutorService pool = Executors.newFixedThreadPool(THREADS, daemon("ct-gc"));
+            AtomicInteger deleted = new AtomicInteger();
+            Set<File> parents = ConcurrentHashMap.newKeySet();
+            try {
+                List<Callable<Void>> chunks = new ArrayList<>();
+                for (int i = 0; i < r.garbage.size(); i += 256) {
+                    List<Found> chunk = r.garbage.subList(i, Math.min(i + 256, r.garbage.size()));
+                    chunks.add(() -> {
+                        for (Found f : chunk) if (f.file.delete()) {
+                            deleted.incrementAndGet();
+                            parents.add(f.file.getParentFile());
+                            files.remove(root + rootPath.relativize(f.file.toPath().toAbsolutePath()).toString().replace(File.separatorChar, '/'));
+                        }
+                        return null;
+                    });
+                }
+                for (Future<Void> c : pool.invokeAll(chunks)) c.get();
+            } finally { pool.shutdownNow(); }
+            Set<Path> tops = new HashSet<>();
+            for (String t : new String[]{"versions", "libraries", "assets/objects", "assets/indexes", "assets/virtual", "natives", "natives/.store"})
+                tops.add(rootPath.resolve(t));
+            List<File> dirs = new ArrayList<>(parents);
+            dirs.sort(Comparator.comparingInt(d -> -d.getPath().length()));
+            for (File d : dirs)
+                for (File p = d; p != null && !tops.contains(p.toPath().toAbsolutePath()) && p.toPath().toAbsolutePath().startsWith(rootPath); p = p.getParentFile()) {
+                    String[] left = p.list();
+                    if (left == null || left.length > 0 || !p.delete()) break;
+                }
+            log.accept(String.format(Locale.ROOT, "Cache GC: deleted %d files, %.1f MB", deleted.get(), r.freed / 1048576.0));
+            return deleted.get();
+        }
+        
+        // Splits found into live and garbage for the kept versions; files younger than cutoff are live
+        Result sweep(List<Found> found, List<Marks> kept, Set<String> installed, long cutoff, List<String> evicted) {
+            Set<String> versions = new HashSet<>(), libs = new HashSet<>(), assetIds = new HashSet<>(), storeKeys = new HashSet<>();
+            DigestSet objects = new DigestSet();
+            Map<String, Marks> byId = new HashMap<>();
+            for (Marks m : kept) byId.put(m.id, m);
+            for (Marks m : kept) {
+                for (Marks p = m; p != null && versions.add(p.id); p = byId.get(p.parent)) {
+                    libs.addAll(p.libs); storeKeys.addAll(p.storeKeys); assetIds.add(p.assetId);
+                    for (int k = 0; k < p.objects.count; k++) objects.put(p.objects.keys, k * 20, p.objects.vals[k]);
+                }
+            }
+            Result r = new Result();
+            r.evicted.addAll(evicted);
+            Set<Object> live = new HashSet<>(), counted = new HashSet<>();
+            List<Found> dead = new ArrayList<>();
+            byte[] d = new byte[20];
+            for (Found f : found) {
+                boolean alive = f.mtime > cutoff;
+                if (!alive) switch (f.kind) {
+                    case VERSION: alive = !installed.contains(f.owner) || versions.contains(f.owner); break;
+                    case LIBRARY: alive = libs.contains(f.owner); break;
+                    case OBJECT: alive = DigestSet.unhex(f.owner, d) && objects.get(d, 0) != DigestSet.ABSENT; break;
+                    case INDEX: case VIRTUAL: alive = assetIds.contains(f.owner); break;
+                    case NATIVES: alive = versions.contains(f.owner); break;
+                    case STORE: alive = storeKeys.contains(f.owner); break;
+                }
+                if (alive) live.add(f.key); else dead.add(f);
+            }
+            for (Found f : found) if (counted.add(f.key)) { if (live.contains(f.key)) r.retained += f.size; else r.freed += f.size; }
+            counted.clear();
+            for (Found f : dead) { r.garbage.add(f); r.count[f.kind]++; if (!live.contains(f.key) && counted.add(f.key)) r.bytes[f.kind] += f.size; }
+            return r;
+        }
+        
+        static boolean isParent(Marks m, List<Marks> kept) {
+            for (Marks k : kept) if (m.id.equals(k.parent)) return true;
+            return false;
+        }
+        
+        // The libraries, asset objects and natives store entries one version's JSON reaches. The
+        // version directory's mtime is its last launch.
+        Marks mark(String id) throws IOException {
+            Object json;
+            try { json = new Json(Files.readAllBytes(Paths.get(root + "versions/" + id + "/" + id + ".json"))).readValue(); }
+            catch (IllegalArgumentException e) { throw new IOException("Cannot read version " + id + ": " + e.getMessage()); }
+            VersionDetails d = new VersionDetails(json);
+            File idx = new File(root + "assets/indexes/" + d.assetId + ".json");
+            Marks m = new Marks(id, Json.str(json, "inheritsFrom"), d.assetId, new File(root + "versions/" + id).lastModified(),
+                idx.isFile() ? readAssetIndex(idx) : new DigestSet(), new HashSet<>(new NativesManifest(root + "natives/" + id).jars.keySet()));
+            for (LibInfo lib : d.libraries) {
+                if (lib.artifactPath != null) m.libs.add(lib.artifactPath);
+                if (lib.nativePath != null) m.libs.add(lib.nativePath);
+            }
+            return m;
+        }
+        
+        File[] children(String dir) {
+            File[] c = new File(root + dir).listFiles();
+            return c != null ? c : new File[0];
+        }
+        
+        // Every file under top; owner null means it is derived from the file (library path, object or index name)
+        List<Found> walk(File top, int kind, String owner) throws IOException {
+            List<Found> out = new ArrayList<>();
+            if (!top.exists()) return out;
+            Path libs = rootPath.resolve("libraries");
+            Files.walkFileTree(top.toPath().toAbsolutePath(), new SimpleFileVisitor<Path>() {
+                @Override public FileVisitResult visitFile(Path p, BasicFileAttributes a) {
+                    if (!a.isRegularFile()) return FileVisitResult.CONTINUE;
+                    String name = p.getFileName().toString(), o = owner;
+                    if (o == null) o = kind == LIBRARY ? libs.relativize(p).toString().replace(File.separatorChar, '/')
+                        : kind == INDEX ? (name.endsWith(".json") ? name.substring(0, name.length() - 5) : "") : name;
+                    out.add(new Found(p.toFile(), a.fileKey() != null ? a.fileKey() : p, a.size(), a.lastModifiedTime().toMillis(), kind, o));
+                    return FileVisitResult.CONTINUE;
+                }
+                @Override public FileVisitResult visitFileFailed(Path p, IOException e) { return FileVisitResult.CONTINUE; }
+            });
+            return out;
+        }
+        
+        // --gc runs a collection without the UI and exits; --gc-dry-run lists what it would delete, and
+        // --gc-budget=MB (or -Dctlauncher.gcBudgetMB) sets the size budget
+        static int cli(String root, String[] args) {
+            boolean dry = false;
+            long budget = Long.getLong("ctlauncher.gcBudgetMB", 0);
+            for (String a : args) {
+                if (a.equals("--gc-dry-run")) dry = true;
+                else if (a.startsWith("--gc-budget=")) {
+                    try { budget = Long.parseLong(a.substring(12)); } catch (NumberFormatException e) { budget = -1; }
+                    if (budget < 0) { System.err.println("Invalid option: " + a); return 2; }
+                }
+                else if (!a.equals("--gc")) { System.err.println("Unknown option: " + a); return 2; }
+            }
+            try (FileChannel lock = gcLock(root, false)) {
+                if (lock == null) { System.err.println("A launcher is preparing a launch, try again once it has started the game"); return 1; }
+                FileIndex files = new FileIndex(root);
+                files.load();
+                CacheGC gc = new CacheGC(root, files, System.out::println);
+                Result r = gc.scan(budget << 20);
+                if (dry) for (Found f : r.garbage) System.out.println("  " + f.file);
+                else if (gc.delete(r) > 0) { files.dirty = true; files.save(); }
+                return 0;
+            } catch (Exception e) {
+                System.err.println("Cache GC failed: " + e.getMessage());
+                return 1;
+            }
+        }
+    }
+
+    // Prints the phase table once per launch and writes the same numbers to cache/profiles/launch-<time>.json,
+    // keeping the last PROFILES_KEPT of them (the names sort by time). Minecraft's own logs/ is left alone.
+    static final int PROFILES_KEPT = 20;
+    
+    void report(LaunchProfile p, String id) {
+        if (!p.close()) return;
+        for (String row : p.table()) log(row);
+        File out = new File(MC_DIR + "cache/profiles/" + String.format("launch-%tY%<tm%<td-%<tH%<tM%<tS.json", p.started));
+        try {
+            out.getParentFile().mkdirs();
+            Files.write(out.toPath(), p.json(id).getBytes(StandardCharsets.UTF_8));
+            log("Launch profile: " + out);
+            String[] old = out.getParentFile().list((d, n) -> n.startsWith("launch-") && n.endsWith(".json"));
+            if (old != null && old.length > PROFILES_KEPT) {
+                Arrays.sort(old);
+                for (int i = 0; i < old.length - PROFILES_KEPT; i++) new File(out.getParentFile(), old[i]).delete();
+            }
+        } catch (IOException e) { log("Could not write launch profile: " + e.getMessage()); }
+    }
+    
+    String genUUID(String u) {
+        try { MessageDigest md = MessageDigest.getInstance("MD5"); byte[] h = md.digest(("OfflinePlayer:" + u).getBytes());
+            h[6] = (byte) ((h[6] & 0x0f) | 0x30); h[8] = (byte) ((h[8] & 0x3f) | 0x80);
+            StringBuilder sb = new StringBuilder(); for (byte b : h) sb.append(String.format("%02x", b));
+            return sb.insert(8, '-').insert(13, '-').insert(18, '-').insert(23, '-').toString();
+        } catch (Exception e) { return UUID.randomUUID().toString(); }
+    }
+    
+    // ═══════════════════════════════════════════════════════════
+    // Networking: one shared HTTP/2 client with pooled keep-alive
+    // connections, and one retry/redirect policy for every request
+    // ═══════════════════════════════════════════════════════════
+    static final HttpClient HTTP = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_2)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .connectTimeout(Duration.ofSeconds(15))
+        .build();
+    static final String[] WARM_HOSTS = {"https://piston-meta.mojang.com/", "https://libraries.minecraft.net/", "https://resources.download.minecraft.net/"};
+    static final int HTTP_RETRIES = 3;
+    static final long SEGMENT_MIN = 8L << 20;
+    static final int SEGMENTS = 4;
+    
+    interface BodyReader<T> { T read(HttpResponse<InputStream> r, InputStream in) throws Exception; }
+    
+    // ═══════════════════════════════════════════════════════════
+    // Adaptive scheduling: every request takes a slot from its host's
+    // gate, whose limit grows/shrinks with throughput and errors (AIMD),
+    // and every body byte passes the global bandwidth bucket
+    // ═══════════════════════════════════════════════════════════
+    static final Map<String, HostGate> GATES = new ConcurrentHashMap<>();
+    static final TokenBucket BANDWIDTH = new TokenBucket(Long.getLong("ctlauncher.maxKBps", 0) * 1024);
+    
+    static HostGate gate(String url) {
+        String h = URI.create(url).getHost();
+        return GATES.computeIfAbsent(h != null ? h : url, HostGate::new);
+    }
+    
+    // Per-host concurrency limit and circuit breaker. Successes add 1/limit (about +1 per round of
+    // requests), failures halve it. The limit only keeps growing while it buys throughput: once a
+    // window measures well below the best one seen, it falls back to the limit that achieved the best.
+    // Consecutive failures push retries out exponentially; after BREAK_AFTER the circuit opens and the
+    // host gets a single probe request once the cool-down is over.
+    static class HostGate {
+        static final double MIN = 1, START = 4;
+        static final int BREAK_AFTER = 5;
+        static final long WINDOW = 2_000_000_000L;
+        
+        final String host;
+        double limit = START, bestRate, bestLimit = START;
+        int inFlight, failures, trips;
+        long retryAt, windowStart = System.nanoTime(), windowBytes;
+        
+        HostGate(String host) { this.host = host; }
+        
+        synchronized void acquire(BooleanSupplier cancelled) throws InterruptedException {
+            while (true) {
+                if (cancelled.getAsBoolean()) throw new InterruptedException();
+                long wait = (retryAt - System.nanoTime()) / 1_000_000;
+                if (wait <= 0 && inFlight < (int) limit) break;
+                wait(Math.max(1, Math.min(250, wait > 0 ? wait : 250)));
+            }
+            inFlight++;
+        }
+        
+        synchronized void release() { inFlight--; notifyAll(); }
+        
+        synchronized void success() {
+            failures = 0; trips = 0;
+            limit = Math.min(DL_THREADS, limit + 1 / limit);
+        }
+        
+        // Returns true when this failure opened the circuit
+        synchronized boolean failure() {
+            limit = Math.max(MIN, limit / 2);
+            long backoff;
+            boolean open = ++failures >= BREAK_AFTER;
+            if (open) { backoff = Math.min(60_000L, 5_000L << Math.min(4, trips++)); failures = 0; limit = MIN; }
+            else backoff = (250L << failures) + ThreadLocalRandom.current().nextLong(250);
+            retryAt = System.nanoTime() + backoff * 1_000_000;
+            notifyAll();
+            return open;
+        }
+        
+        synchronized void bytes(long n) {
+            windowBytes += n;
+            long now = System.nanoTime(), span = now - windowStart;
+            if (span < WINDOW) return;
+            double rate = windowBytes * 1e9 / span;
+            if (rate > bestRate) { bestRate = rate; bestLimit = limit; }
+            else if (rate < bestRate * 0.8 && limit > bestLimit) limit = bestLimit;
+            windowStart = now; windowBytes = 0;
+        }
+        
+        synchronized int inFlight() { return inFlight; }
+    }
+    
+    // Global byte budget (0 = unlimited), refilled continuously with up to one second of burst
+    static class TokenBucket {
+        volatile long rate;
+        double tokens;
+        long last = System.nanoTime();
+        
+        TokenBucket(long rate) { this.rate = rate; }
+        
+        void take(int n) {
+            long r = rate, park;
+            if (r <= 0 || n <= 0) return;
+            synchronized (this) {
+                long now = System.nanoTime();
+                tokens = Math.min(r, tokens + (now - last) * r / 1e9) - n;
+                last = now;
+                park = tokens < 0 ? (long) (-tokens * 1e9 / r) : 0;
+            }
+            if (park > 0) LockSupport.parkNanos(park);
+        }
+    }
+    
+    // Response body that charges every byte to the bandwidth cap, its host's throughput window and the launch profile
+    static class Metered extends FilterInputStream {
+        final HostGate gate;
+        final AtomicLong counted;
+        Metered(InputStream in, HostGate gate, AtomicLong counted) { super(in); this.gate = gate; this.counted = counted; }
+        @Override public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) { BANDWIDTH.take(1); gate.bytes(1); counted.incrementAndGet(); }
+            return b;
+        }
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) { BANDWIDTH.take(n); gate.bytes(n); counted.addAndGet(n); }
+            return n;
+        }
+    }
+    
+    // Opens the TCP+TLS (and HTTP/2) connections to the Mojang hosts while the UI is still coming up
+    static void warmUp() {
+        for (String h : WARM_HOSTS)
+            HTTP.sendAsync(HttpRequest.newBuilder(URI.create(h)).method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .header("User-Agent", NAME + "/" + VER).timeout(Duration.ofSeconds(10)).build(), HttpResponse.BodyHandlers.discarding());
+    }
+    
+    // Retries I/O errors, 429 and 5xx after the host gate's backoff; other statuses fail at once.
+    // Redirects are followed by the client. A 304 (only sent for conditional requests) reaches the reader.
+    <T> T fetch(String url, BodyReader<T> reader, String... headers) throws Exception {
+        return fetch(url, reader, () -> headers);
+    }
+    
+    // headers is re-evaluated on every attempt so resumable requests can move their Range forward
+    <T> T fetch(String url, BodyReader<T> reader, Supplier<String[]> headers) throws Exception {
+        Exception last = null;
+        HostGate gate = gate(url);
+        for (int attempt = 0; attempt < HTTP_RETRIES; attempt++) {
+            if (attempt > 0) profile.retries.incrementAndGet();
+            HttpRequest.Builder rb = HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(30)).header("User-Agent", NAME + "/" + VER);
+            String[] h = headers.get();
+            for (int i = 0; i + 1 < h.length; i += 2) rb.header(h[i], h[i + 1]);
+            gate.acquire(() -> cancelled);
+            boolean healthy = false, failed = false;
+            try {
+                HttpResponse<InputStream> r = HTTP.send(rb.build(), HttpResponse.BodyHandlers.ofInputStream());
+                try (InputStream in = new Metered(r.body(), gate, profile.bytes)) {
+                    int code = r.statusCode();
+                    if (code / 100 == 2 || code == 304) { T t = reader.read(r, in); healthy = true; return t; }
+                    last = new IOException("HTTP " + code + " for " + url);
+                    if (code != 429 && code < 500) { healthy = true; break; }
+                    failed = true;
+                }
+            } catch (IOException e) { last = e; failed = !cancelled;
+            } finally {
+                gate.release();
+                if (healthy) gate.success();
+                else if (failed && gate.failure()) log("Too many errors from " + gate.host + ", pausing requests to it");
+            }
+        }
+        throw last != null ? last : new IOException("Cancelled: " + url);
+    }
+    
+    String http(String url) throws Exception {
+        return fetch(url, (r, in) -> body(r, in), "Accept", "application/json", "Accept-Encoding", "gzip");
+    }
+    
+    static String body(HttpResponse<?> r, InputStream in) throws IOException {
+        InputStream body = "gzip".equalsIgnoreCase(r.headers().firstValue("Content-Encoding").orElse("")) ? new GZIPInputStream(in) : in;
+        return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+    }
+    
+    // Fetches bytes [from, to] of url (to = -1: up to EOF) into part, continuing from whatever an earlier
+    // attempt or launcher run left there. A range the server ignores surfaces as IllegalStateException.
+    // When md is given it ends up holding the digest of the whole part, computed while the bytes are written.
+    // The part is never grown ahead of the data: its length is what arrived, and that is where a resume
+    // (after a crash or the window being closed mid-download) picks up.
+    void fetchRange(String url, File part, long from, long to, AtomicLong done, long total, int p1, int p2, MessageDigest md) throws Exception {
+        for (int pass = 0; ; pass++) {
+            try {
+                fetch(url, (r, in) -> {
+                    boolean append = r.statusCode() == 206;
+                    if (!append && (from > 0 || to >= 0)) throw new IllegalStateException("Range not honoured by " + url);
+                    if (!append) done.addAndGet(-part.length());
+                    if (md != null) { md.reset(); if (append) digestFile(md, part); }
+                    try (FileChannel ch = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                        long pos = append ? ch.size() : 0;
+                        if (!append) ch.truncate(0);
+                        Tap tap = new Tap(Channels.newChannel(in), md, () -> cancelled, n -> {
+                            long d = done.addAndGet(n);
+                            if (total > 0 && p2 > p1) progress(p1 + (int) ((p2 - p1) * d / total));
+                        });
+                        drain(tap, ch, pos);
+                    }
+                    if (cancelled) throw new InterruptedException();
+                    return null;
+                }, () -> {
+                    long at = from + part.length();
+                    return at > 0 || to >= 0 ? new String[]{"Range", "bytes=" + at + "-" + (to >= 0 ? String.valueOf(to) : "")} : new String[0];
+                });
+                return;
+            } catch (IOException e) {
+                // 416 on a resume means the part is stale (the file changed upstream); start it over once
+                if (pass > 0 || part.length() == 0 || !String.valueOf(e.getMessage()).startsWith("HTTP 416")) throw e;
+                done.addAndGet(-part.length()); part.delete();
+            }
+        }
+    }
+    
+    // Files of known size >= SEGMENT_MIN are fetched as SEGMENTS parallel ranges, everything else as one
+    // resumable stream. Partial data stays in .part files and only replaces dest once size and sha1 match;
+    // a part that fails verification is thrown away and fetched once more from scratch.
+    void download(String url, String dest, long size, String sha1, int p1, int p2) throws Exception {
+        File part = new File(dest + ".part");
+        singleFlight(dest, size, sha1, () -> {
+            String got;
+            for (int attempt = 0; ; attempt++) {
+                AtomicLong done = new AtomicLong();
+                MessageDigest md = MessageDigest.getInstance("SHA-1");
+                if (size < SEGMENT_MIN || !downloadSegmented(url, part, size, done, p1, p2, md)) {
+                    if (size >= 0 && part.length() == size) { md.reset(); digestFile(md, part); }
+                    else { done.set(part.length()); fetchRange(url, part, 0, -1, done, size, p1, p2, md); }
+                }
+                if ((got = checked(part, size, sha1, md)) != null) break;
+                part.delete();
+                if (attempt == 1) throw new IOException("Checksum mismatch for " + new File(dest).getName());
+                log("Checksum mismatch, re-downloading " + new File(dest).getName());
+            }
+            moveIntoPlace(part.toPath(), Paths.get(dest));
+            files.put(dest, got);
+            profile.fetched.incrementAndGet();
+            return true;
+        });
+    }
+    
+    // Returns false (and drops its segments) when the server does not honour range requests.
+    // SHA-1 cannot be split across ranges, so md is fed while the segments are joined into part.
+    boolean downloadSegmented(String url, File part, long size, AtomicLong done, int p1, int p2, MessageDigest md) throws Exception {
+        long seg = (size + SEGMENTS - 1) / SEGMENTS;
+        File[] segs = new File[SEGMENTS];
+        ExecutorService pool = Executors.newFixedThreadPool(SEGMENTS, daemon("ct-segment"));
+        try {
+            List<Future<Object>> pending = new ArrayList<>();
+            for (int i = 0; i < SEGMENTS; i++) {
+                long from = i * seg, to = Math.min(size, from + seg) - 1;
+                File s = segs[i] = new File(part.getPath() + i);
+                if (s.length() > to - from + 1) s.delete();
+                done.addAndGet(s.length());
+                if (s.length() < to - from + 1) pending.add(pool.submit(() -> { fetchRange(url, s, from, to, done, size, p1, p2, null); return null; }));
+            }
+            for (Future<Object> f : pending) f.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IllegalStateException) { for (File s : segs) if (s != null) s.delete(); return false; }
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally { pool.shutdownNow(); }
+        md.reset();
+        try (FileChannel out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            reserve(out, size);
+            ByteBuffer b = ByteBuffer.allocateDirect(1 << 16);
+            long pos = 0;
+            for (File s : segs) try (FileChannel in = FileChannel.open(s.toPath())) {
+                while (in.read(b) > 0) {
+                    b.flip(); md.update(b.duplicate());
+                    while (b.hasRemaining()) pos += out.write(b, pos);
+                    b.clear();
+                }
+            }
+            out.truncate(pos);
+        }
+        for (File s : segs) s.delete();
+        return true;
+    }
+    
+    // ═══════════════════════════════════════════════════════════
+    // LAN peer cache: launchers on the same network serve each other
+    // their verified assets/objects and libraries trees. Everything is
+    // addressed by sha1 or maven path, so a peer copy is checked exactly
+    // like an upstream one and any miss falls through to Mojang.
+    // ═══════════════════════════════════════════════════════════
+    static final int PEER_PORT = Integer.getInteger("ctlauncher.peerPort", 25590);
+    static final HttpClient PEER_HTTP = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(Duration.ofSeconds(2))
+        .build();
+    
+    // "host" or "host:port", separated by commas or spaces
+    static List<String> parsePeers(String s) {
+        List<String> out = new ArrayList<>();
+        for (String p : s.trim().split("[,\\s]+")) if (!p.isEmpty()) out.add(p.contains(":") ? p : p + ":" + PEER_PORT);
+        return out;
+    }
+    
+    // Starts or stops serving this machine's verified downloads to other launchers
+    void setSharing(boolean on) {
+        if (!on) {
+            if (peerServer == null) return;
+            peerServer.stop(0); ((ExecutorService) peerServer.getExecutor()).shutdown();
+            peerServer = null;
+            log("Stopped sharing downloads");
+            return;
+        }
+        if (peerServer != null) return;
+        try {
+            files.load();
+            HttpServer s = HttpServer.create(new InetSocketAddress(PEER_PORT), 0);
+            s.createContext("/assets/objects/", ex -> servePeer(ex, "/assets/objects/", ASSETS_DIR + "objects/"));
+            s.createContext("/libraries/", ex -> servePeer(ex, "/libraries/", LIBRARIES_DIR));
+            s.setExecutor(Executors.newFixedThreadPool(4, daemon("ct-peer")));
+            s.start();
+            peerServer = s;
+            log("Sharing downloads with LAN peers on port " + PEER_PORT);
+        } catch (IOException e) { log("Could not share downloads: " + e.getMessage()); }
+    }
+    
+    // Only files the index has verified (and that still have the indexed size) are served, so a peer
+    // never receives a partial or unchecked copy. The resolved path must stay inside root.
+    void servePeer(HttpExchange ex, String prefix, String root) throws IOException {
+        try {
+            Path base = Paths.get(root).toAbsolutePath().normalize(), p = base.resolve(ex.getRequestURI().getPath().substring(prefix.length())).normalize();
+            File f = p.toFile();
+            if (!"GET".equals(ex.getRequestMethod()) || !p.startsWith(base) || p.equals(base)
+                || !files.has(root + base.relativize(p).toString().replace(File.separatorChar, '/'), f.length(), null)) {
+                ex.sendResponseHeaders(404, -1);
+                return;
+            }
+            ex.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            ex.sendResponseHeaders(200, f.length());
+            try (OutputStream out = ex.getResponseBody()) { Files.copy(p, out); }
+        } catch (InvalidPathException bad) { ex.sendResponseHeaders(404, -1);
+        } finally { ex.close(); }
+    }
+    
+    // Where dest lives on a peer, or null for files peers do not serve
+    String peerPath(String dest) {
+        String objects = ASSETS_DIR + "objects/";
+        if (dest.startsWith(objects)) return "assets/objects/" + dest.substring(objects.length());
+        if (dest.startsWith(LIBRARIES_DIR)) return "libraries/" + dest.substring(LIBRARIES_DIR.length());
+        return null;
+    }
+    
+    // Asks each peer in turn for a file whose sha1 we know. A peer that cannot be reached is skipped
+    // for a minute; one that sends a bad copy is just passed over. False means go upstream.
+    boolean fromPeers(String dest, long size, String sha1) {
+        String rel = peerPath(dest);
+        if (rel == null || sha1 == null) return false;
+        try {
+            return singleFlight(dest, size, sha1, () -> {
+                File tmp = new File(dest + ".peer");
+                for (String peer : peers) {
+                    Long down = peerDown.get(peer);
+                    if (cancelled || down != null && down > System.currentTimeMillis()) continue;
+                    String url = "http://" + peer + "/" + rel;
+                    try {
+                        HttpResponse<InputStream> r = PEER_HTTP.send(HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(30))
+                            .header("User-Agent", NAME + "/" + VER).build(), HttpResponse.BodyHandlers.ofInputStream());
+                        MessageDigest md = MessageDigest.getInstance("SHA-1");
+                        try (InputStream in = new Metered(r.body(), gate(url), profile.bytes)) {
+                            if (r.statusCode() != 200) continue;
+                            try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                                reserve(ch, size);
+                                Tap tap = new Tap(Channels.newChannel(in), md, () -> cancelled, n -> {});
+                                drain(tap, ch, 0);
+                                ch.truncate(tap.read);
+                            }
+                        }
+                        String got = checked(tmp, size, sha1, md);
+                        if (got != null) {
+                            moveIntoPlace(tmp.toPath(), Paths.get(dest));
+                            files.put(dest, got);
+                            profile.fetched.incrementAndGet();
+                            return true;
+                        }
+                    } catch (Exception e) {
+                        if (!cancelled && peerDown.put(peer, System.currentTimeMillis() + 60_000) == null) log("Peer " + peer + " unreachable, using upstream");
+                    } finally { tmp.delete(); }
+                }
+                return false;
+            });
+        } catch (Exception e) { return false; }
+    }
+    
+    // One fetch of dest at a time, among this launcher's threads (a future per destination) and among
+    // launcher processes sharing the directory (a FileLock on dest's own byte of cache/locks/downloads.lock).
+    // Both waits give up when the launch is cancelled. Whoever had to wait checks
+    // dest first, so a file another launch just finished is taken as it is and only fetched again when
+    // that attempt failed or produced something else.
+    boolean singleFlight(String dest, long size, String sha1, Callable<Boolean> fetch) throws Exception {
+        while (true) {
+            CompletableFuture<Boolean> mine = new CompletableFuture<>(), other = inFlight.putIfAbsent(dest, mine);
+            if (other != null) {
+                while (true) {
+                    try { other.get(100, TimeUnit.MILLISECONDS); break; }
+                    catch (ExecutionException failed) { break; }
+                    catch (TimeoutException stillRunning) { if (cancelled) throw new InterruptedException(); }
+                }
+                if (verified(dest, size, sha1)) return true;
+                continue;
+            }
+            try (CacheLock lock = lockFor(dest)) {
+                boolean ok = lock.waited && verified(dest, size, sha1) || fetch.call();
+                mine.complete(ok);
+                return ok;
+            } catch (Exception e) {
+                mine.completeExceptionally(e);
+                throw e;
+            } finally { inFlight.remove(dest, mine); }
+        }
+    }
+    
+    // One lock file for the whole cache, locked a byte at a time: each dest gets its own position (a 62-bit
+    // hash of its path under MC_DIR), so unrelated downloads never wait on each other and no lock files pile up.
+    // All locks go through one channel; on some systems closing any channel on the file drops them all.
+    FileChannel lockChannel;
+    
+    synchronized FileChannel lockChannel() throws IOException {
+        if (lockChannel == null || !lockChannel.isOpen()) {
+            File file = new File(MC_DIR + "cache/locks/downloads.lock");
+            file.getParentFile().mkdirs();
+            lockChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        return lockChannel;
+    }
+    
+    CacheLock lockFor(String dest) throws IOException, InterruptedException {
+        String k = files.key(dest);
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < k.length(); i++) h = (h ^ k.charAt(i)) * 0x100000001b3L;
+        return new CacheLock(lockChannel(), h >>> 2, () -> cancelled);
+    }
+    
+    // Polls rather than blocking in lock(), so a cancelled launch is not stuck behind another process's download.
+    // waited is set only when another process held this position, not for this JVM's own hash twin.
+    static final class CacheLock implements AutoCloseable {
+        final FileLock lock;
+        final boolean waited;
+        
+        CacheLock(FileChannel ch, long pos, BooleanSupplier cancelled) throws IOException, InterruptedException {
+            boolean waited = false;
+            FileLock l = null;
+            while (true) {
+                try {
+                    if ((l = ch.tryLock(pos, 1, false)) != null) break;
+                    waited = true;
+                } catch (OverlappingFileLockException hashTwin) {}
+                if (cancelled.getAsBoolean()) throw new InterruptedException();
+                Thread.sleep(50);
+            }
+            this.lock = l; this.waited = waited;
+        }
+        
+        @Override public void close() throws IOException {
+            try { lock.release(); } catch (ClosedChannelException gone) {}
+        }
+    }
+    
+    boolean downloadQuiet(String url, String dest) { return downloadQuiet(url, dest, -1, null); }
+    
+    boolean downloadQuiet(String url, String dest, long size, String sha1) {
+        if (!peers.isEmpty() && fromPeers(dest, size, sha1)) return true;
+        File part = new File(dest + ".part");
+        try {
+            return singleFlight(dest, size, sha1, () -> {
+                try {
+                    String got;
+                    for (int attempt = 0; ; attempt++) {
+                        MessageDigest md = MessageDigest.getInstance("SHA-1");
+                        fetchRange(url, part, 0, -1, new AtomicLong(), size, 0, 0, md);
+                        if ((got = checked(part, size, sha1, md)) != null) break;
+                        part.delete();
+                        if (attempt == 1) throw new IOException("checksum mismatch");
+                    }
+                    moveIntoPlace(part.toPath(), Paths.get(dest));
+                    files.put(dest, got);
+                    profile.fetched.incrementAndGet();
+                    return true;
+                } catch (Exception ex) {
+                    if (part.length() == 0) part.delete();
+                    throw ex;
+                }
+            });
+        } catch (Exception ex) {
+            profile.failed.incrementAndGet();
+            if (!cancelled) log("Failed: " + new File(dest).getName() + " - " + ex.getMessage());
+            return false;
+        }
+    }
+    
+    // True when path holds the expected content. Answered from the verified-file index when possible;
+    // a file that is present but not indexed yet (e.g. installed by an older launcher) is hashed once
+    // and recorded, so the next launch does not touch the disk for it at all.
+    boolean verified(String path, long size, String sha1) {
+        profile.checked.incrementAndGet();
+        if (files.has(path, size, sha1)) {
+            // Libraries and jars are stat-ed, since the index is only reread when files.idx changed; the
+            // thousands of asset objects are checked per directory when it loads
+            if (files.key(path).startsWith(FileIndex.OBJECTS) || files.intact(path)) return true;
+            files.remove(path);
+        }
+        File f = new File(path);
+        if (!f.isFile() || (size >= 0 && f.length() != size)) return false;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            digestFile(md, f);
+            String got = hex(md.digest());
+            if (sha1 != null && !sha1.equalsIgnoreCase(got)) { log("Corrupt, will re-download: " + f.getName()); return false; }
+            files.put(path, got);
+            return true;
+        } catch (Exception e) { return false; }
+    }
+    
+    // md must already hold the digest of f's content. Returns that digest as hex when f has the
+    // expected size and sha1 (-1/null are not checked), otherwise null.
+    String checked(File f, long size, String sha1, MessageDigest md) {
+        String got = hex(md.digest());
+        return (size < 0 || f.length() == size) && (sha1 == null || sha1.equalsIgnoreCase(got)) ? got : null;
+    }
+    
+    static void digestFile(MessageDigest md, File f) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath())) {
+            ByteBuffer b = ByteBuffer.allocateDirect(1 << 16);
+            while (ch.read(b) > 0) { b.flip(); md.update(b); b.clear(); }
+        }
+    }
+    
+    // Source side of a transferFrom: digests and counts every chunk the file channel pulls through it,
+    // and reports end-of-stream as soon as the launch is cancelled
+    static class Tap implements ReadableByteChannel {
+        final ReadableByteChannel src;
+        final MessageDigest md;
+        final BooleanSupplier stop;
+        final LongConsumer counted;
+        long read;
+        
+        Tap(ReadableByteChannel src, MessageDigest md, BooleanSupplier stop, LongConsumer counted) {
+            this.src = src; this.md = md; this.stop = stop; this.counted = counted;
+        }
+        
+        @Override public int read(ByteBuffer dst) throws IOException {
+            if (stop.getAsBoolean()) return -1;
+            int p = dst.position(), n = src.read(dst);
+            if (n > 0) {
+                if (md != null) md.update(dst.duplicate().limit(p + n).position(p));
+                read += n; counted.accept(n);
+            }
+            return n;
+        }
+        
+        @Override public boolean isOpen() { return src.isOpen(); }
+        @Override public void close() throws IOException { src.close(); }
+    }
+    
+    // Copies src into dst from pos until end-of-stream and returns the end position
+    static long drain(ReadableByteChannel src, FileChannel dst, long pos) throws IOException {
+        for (long n; (n = dst.transferFrom(src, pos, 1 << 20)) > 0; ) pos += n;
+        return pos;
+    }
+    
+    // Sets the file's size to len before writing (never shrinks it) so it is laid out once, not grown chunk by chunk.
+    // Only for files written in one go; a resumable part's length has to stay the count of bytes received.
+    static void reserve(FileChannel ch, long len) throws IOException {
+        if (len > ch.size()) ch.write(ByteBuffer.allocate(1), len - 1);
+    }
+    
+    // Renames a finished temp/part file over its destination in one step where the file system allows it
+    static void moveIntoPlace(Path from, Path to) throws IOException {
+        try { Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING); }
+        catch (AtomicMoveNotSupportedException e) { Files.move(from, to, StandardCopyOption.REPLACE_EXISTING); }
+    }
+    
+    static String hex(byte[] h) {
+        char[] c = new char[h.length * 2];
+        for (int i = 0; i < h.length; i++) { c[2 * i] = Character.forDigit((h[i] >> 4) & 15, 16); c[2 * i + 1] = Character.forDigit(h[i] & 15, 16); }
+        return new String(c);
+    }
+    
+    static ThreadFactory daemon(String name) {
+        return r -> { Thread t = new Thread(r, name); t.setDaemon(true); return t; };
+    }
+    
+    int fetchAll(List<DlJob> jobs, String label, int p1, int p2) throws InterruptedException {
+        return jobs.isEmpty() ? 0 : fetchAll(JobQueue.of(jobs), label, p1, p2);
+    }
+    
+    // Drains the queue with a bounded worker pool, also while its producer is still adding jobs; the
+    // calling thread only reports progress and watches for cancel
+    int fetchAll(JobQueue q, String label, int p1, int p2) throws InterruptedException {
+        int workers = q.done ? Math.min(DL_THREADS, q.total.get()) : DL_THREADS;
+        if (workers == 0) return 0;
+        AtomicInteger done = new AtomicInteger(), ok = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, daemon("ct-download"));
+        for (int w = 0; w < workers; w++) pool.execute(() -> {
+            try {
+                while (!cancelled) {
+                    DlJob j = q.jobs.poll(50, TimeUnit.MILLISECONDS);
+                    if (j == null) { if (q.done && q.jobs.isEmpty()) return; continue; }
+                    if (downloadQuiet(j.url, j.path, j.size, j.sha1)) {
+                        ok.incrementAndGet(); bytes.addAndGet(new File(j.path).length());
+                        if (j.then != null) try { j.then.run(); } catch (RejectedExecutionException afterCancel) {}
+                    }
+                    done.incrementAndGet();
+                }
+            } catch (InterruptedException stopped) {}
+        });
+        pool.shutdown();
+        long t0 = System.nanoTime();
+        try {
+            while (!pool.awaitTermination(250, TimeUnit.MILLISECONDS)) {
+                if (cancelled) throw new InterruptedException();
+                int d = done.get(), total = Math.max(1, q.total.get()); double secs = Math.max(0.001, (System.nanoTime() - t0) / 1e9);
+                int live = 0; for (HostGate g : GATES.values()) live += g.inFlight();
+                String msg = String.format("%s... %d/%d  (%.1f MB/s, %d in flight)", label, d, total, bytes.get() / secs / 1048576, live);
+                progress(p1 + (p2 - p1) * d / total);
+                SwingUtilities.invokeLater(() -> statusLabel.setText("  " + msg));
+            }
+        } finally { pool.shutdownNow(); }
+        if (cancelled) throw new InterruptedException();
+        double secs = Math.max(0.001, (System.nanoTime() - t0) / 1e9);
+        log(String.format("%s: %d/%d fetched, %.1f MB in %.1fs (%.1f MB/s)", label, ok.get(), q.total.get(), bytes.get() / 1048576.0, secs, bytes.get() / secs / 1048576));
+        return ok.get();
+    }
+    
+    // ═══════════════════════════════════════════════════════════
+    // JSON: one forward pass over UTF-8 bytes, nothing rescanned or
+    // re-substringed. Pull methods walk the big asset indexes without a
+    // tree; parse() builds one for the small documents (objects are
+    // LinkedHashMaps, arrays ArrayLists, numbers Long or Double).
+    // ═══════════════════════════════════════════════════════════
+    static final class Json {
+        final ByteBuffer b;
+        final int n;
+        int i;
+        
+        Json(String s) { this(s.getBytes(StandardCharsets.UTF_8)); }
+        Json(byte[] data) { this(ByteBuffer.wrap(data)); }
+        Json(ByteBuffer data) { b = data; i = data.position(); n = data.limit(); }
+        
+        static Object parse(String s) { return new Json(s).readValue(); }
+        
+        IllegalArgumentException bad(String what) { return new IllegalArgumentException("Bad JSON at byte " + i + ": " + what); }
+        
+        // Skips whitespace and returns the next byte without consuming it
+        int peek() {
+            for (; i < n; i++) { byte c = b.get(i); if (c != ' ' && c != '\n' && c != '\r' && c != '\t') return c; }
+            throw bad("unexpected end");
+        }
+        
+        void expect(char c) { if (peek() != c) throw bad("expected '" + c + "'"); i++; }
+        
+        void beginObject() { expect('{'); }
+        void endObject() { expect('}'); }
+        void beginArray() { expect('['); }
+        void endArray() { expect(']'); }
+        
+        // Steps over a separating comma; false at the close of the current object or array
+        boolean hasNext() {
+            int c = peek();
+            if (c == ',') { i++; c = peek(); }
+            return c != '}' && c != ']';
+        }
+        
+        String nextName() { String s = nextString(); expect(':'); return s; }
+        void skipName() { skipString(); expect(':'); }
+        
+        String nextString() {
+            expect('"');
+            for (int s = i; i < n; i++) {
+                byte c = b.get(i);
+                if (c == '"') return text(s, i++);
+                if (c == '\\') return escaped(s);
+            }
+            throw bad("unterminated string");
+        }
+        
+        // Slow path for strings that contain escapes, resumed at the first backslash
+        String escaped(int s) {
+            StringBuilder sb = new StringBuilder(text(s, i));
+            while (i < n) {
+                byte c = b.get(i);
+                if (c == '"') { i++; return sb.toString(); }
+                if (c != '\\') { int r = i; while (i < n && b.get(i) != '"' && b.get(i) != '\\') i++; sb.append(text(r, i)); continue; }
+                if (i + 1 >= n) break;
+                char e = (char) b.get(i + 1); i += 2;
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (i + 4 > n) throw bad("short \\u escape");
+                        try { sb.append((char) Integer.parseInt(text(i, i + 4), 16)); } catch (NumberFormatException x) { throw bad("bad \\u escape"); }
+                        i += 4; break;
+                    default: sb.append(e);
+                }
+            }
+            throw bad("unterminated string");
+        }
+        
+        String text(int from, int to) {
+            if (b.hasArray()) return new String(b.array(), b.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+            byte[] t = new byte[to - from]; b.get(from, t);
+            return new String(t, StandardCharsets.UTF_8);
+        }
+        
+        void skipString() {
+            expect('"');
+            while (i < n) { byte c = b.get(i++); if (c == '\\') i++; else if (c == '"') return; }
+            throw bad("unterminated string");
+        }
+        
+        // A 40-char hex string decoded straight into d[0..20); false (string still consumed) otherwise
+        boolean nextDigest(byte[] d) {
+            int s = peekAt(), j = 0;
+            expect('"');
+            for (; j < 20 && i + 1 < n; j++, i += 2) {
+                int hi = Character.digit(b.get(i), 16), lo = Character.digit(b.get(i + 1), 16);
+                if (hi < 0 || lo < 0) break;
+                d[j] = (byte) (hi << 4 | lo);
+            }
+            if (j == 20 && i < n && b.get(i) == '"') { i++; return true; }
+            i = s; skipString();
+            return false;
+        }
+        
+        // Integral fast path without allocation; falls back to nextNumber for fractions and exponents
+        long nextLong() {
+            int s = peekAt(), c = 0;
+            boolean neg = b.get(i) == '-';
+            if (neg) i++;
+            long v = 0;
+            while (i < n && (c = b.get(i)) >= '0' && c <= '9') { v = v * 10 + (c - '0'); i++; }
+            if (i < n && (c == '.' || c == 'e' || c == 'E')) { i = s; return nextNumber().longValue(); }
+            if (i == s + (neg ? 1 : 0)) throw bad("expected a number");
+            return neg ? -v : v;
+        }
+        
+        int peekAt() { peek(); return i; }
+        
+        Number nextNumber() {
+            int s = peekAt();
+            boolean real = false;
+            for (; i < n; i++) {
+                byte c = b.get(i);
+                if (c == '.' || c == 'e' || c == 'E') real = true;
+                else if ((c < '0' || c > '9') && c != '-' && c != '+') break;
+            }
+            if (i == s) throw bad("expected a value");
+            String t = text(s, i);
+            try { return real ? (Number) Double.parseDouble(t) : (Number) Long.parseLong(t); }
+            catch (NumberFormatException e) { throw bad("bad number " + t); }
+        }
+        
+        boolean nextBoolean() {
+            if (word("true")) return true;
+            if (word("false")) return false;
+            throw bad("expected a boolean");
+        }
+        
+        boolean word(String w) {
+            peek();
+            if (i + w.length() > n) return false;
+            for (int k = 0; k < w.length(); k++) if (b.get(i + k) != w.charAt(k)) return false;
+            i += w.length();
+            return true;
+        }
+        
+        void skipValue() {
+            int c = peek();
+            if (c == '"') { skipString(); return; }
+            if (c == '{' || c == '[') {
+                for (int depth = 0; i < n; ) {
+                    byte x = b.get(i);
+                    if (x == '"') { skipString(); continue; }
+                    i++;
+                    if (x == '{' || x == '[') depth++;
+                    else if ((x == '}' || x == ']') && --depth == 0) return;
+                }
+                throw bad("unterminated " + (char) c);
+            }
+            readValue();
+        }
+        
+        Object readValue() {
+            switch (peek()) {
+                case '{': {
+                    Map<String, Object> m = new LinkedHashMap<>();
+                    beginObject(); while (hasNext()) m.put(nextName(), readValue()); endObject();
+                    return m;
+                }
+                case '[': {
+                    List<Object> l = new ArrayList<>();
+                    beginArray(); while (hasNext()) l.add(readValue()); endArray();
+                    return l;
+                }
+                case '"': return nextString();
+                case 't': case 'f': return nextBoolean();
+                case 'n': if (word("null")) return null; throw bad("expected null");
+                default: return nextNumber();
+            }
+        }
+        
+        // Tree lookups. A null or wrongly typed parent yields null / empty / -1, so paths can be chained.
+        static Object get(Object o, String k) { return o instanceof Map ? ((Map<?, ?>) o).get(k) : null; }
+        static Map<?, ?> obj(Object o, String k) { Object v = get(o, k); return v instanceof Map ? (Map<?, ?>) v : null; }
+        static List<?> arr(Object o, String k) { Object v = get(o, k); return v instanceof List ? (List<?>) v : Collections.emptyList(); }
+        static String str(Object o, String k) { Object v = get(o, k); return v instanceof String ? (String) v : null; }
+        static long num(Object o, String k) { Object v = get(o, k); return v instanceof Number ? ((Number) v).longValue() : -1; }
     }
 }